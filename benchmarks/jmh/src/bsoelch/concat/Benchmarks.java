@@ -0,0 +1,45 @@
+package bsoelch.concat;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**shared setup of the JMH benchmarks, the benchmarks have to be run from the project root*/
+final class Benchmarks {
+    private Benchmarks(){}
+
+    static final String BENCHMARK_PATH="benchmarks/";
+
+    static final PrintStream NULL_OUT=new PrintStream(OutputStream.nullOutputStream());
+
+    static IOContext context(){
+        return new IOContext(InputStream.nullInputStream(),NULL_OUT,System.err);
+    }
+    static Parser.Program parse(File file) throws IOException, SyntaxError {
+        Type.resetCached();
+        return Parser.parse(file,null,context());
+    }
+    /**@return a temporary file including all library files*/
+    static File stdLib() throws IOException {
+        File[] libFiles=new File(Parser.libPath).listFiles();
+        if(libFiles==null){
+            throw new IOException("unable to list files in "+Parser.libPath);
+        }
+        Arrays.sort(libFiles);
+        File file=File.createTempFile("stdlib",Parser.DEFAULT_FILE_EXTENSION);
+        file.deleteOnExit();
+        try(BufferedWriter out=new BufferedWriter(new FileWriter(file))){
+            out.write("benchmarks/stdlib :");
+            out.newLine();
+            for(File f:libFiles){
+                String name=f.getName();
+                if(name.endsWith(Parser.DEFAULT_FILE_EXTENSION)){
+                    out.write(name.substring(0,name.length()-Parser.DEFAULT_FILE_EXTENSION.length())+" #include");
+                    out.newLine();
+                }
+            }
+            out.write("main public proc( => ){ }");
+            out.newLine();
+        }
+        return file;
+    }
+}
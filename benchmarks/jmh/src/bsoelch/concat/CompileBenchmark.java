@@ -0,0 +1,36 @@
+package bsoelch.concat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**compiles compiler.concat/test_compilerJ.concat to C, the program is parsed again before each invocation*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class CompileBenchmark {
+    private final File source=new File("compiler.concat/test_compilerJ"+Parser.DEFAULT_FILE_EXTENSION);
+    private File out;
+    private Parser.Program parsed;
+
+    @Setup(Level.Trial)
+    public void createOutput() throws IOException {
+        out=File.createTempFile("compilerJ_out",".c");
+        out.deleteOnExit();
+    }
+    @Setup(Level.Invocation)
+    public void parse() throws IOException, SyntaxError {
+        parsed=Benchmarks.parse(source);
+    }
+
+    @Benchmark
+    public File compile() throws IOException {
+        Compiler.compile(parsed,out);
+        return out;
+    }
+}
@@ -0,0 +1,38 @@
+package bsoelch.concat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**parses a file including all library files*/
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ParseBenchmark {
+    private File stdLib;
+
+    @Setup
+    public void setup() throws IOException {
+        stdLib=Benchmarks.stdLib();
+    }
+
+    /**first parse in a new JVM, includes class loading and the time until the parser is compiled*/
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    @Fork(10)
+    public Object parseCold() throws IOException, SyntaxError {
+        return Benchmarks.parse(stdLib);
+    }
+    /**parse after the parser is warmed up*/
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Warmup(iterations = 5, time = 1)
+    @Measurement(iterations = 10, time = 1)
+    @Fork(2)
+    public Object parseWarm() throws IOException, SyntaxError {
+        return Benchmarks.parse(stdLib);
+    }
+}
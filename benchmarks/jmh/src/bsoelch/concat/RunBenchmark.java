@@ -0,0 +1,50 @@
+package bsoelch.concat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**executes the programs in benchmarks/ and examples/primes.concat with both interpreter engines*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class RunBenchmark {
+    @Param({"fib","mergesort","hashMap","stringBuilder","primes"})
+    public String program;
+    @Param({"TOKENS","BYTECODE"})
+    public String engine;
+
+    private Parser.Program parsed;
+    private Interpreter.Engine interpreterEngine;
+    private IOContext context;
+    private String[] arguments;
+    private PrintStream stdOut;
+
+    @Setup
+    public void setup() throws IOException, SyntaxError {
+        File file=program.equals("primes")?new File("examples/primes"+Parser.DEFAULT_FILE_EXTENSION):
+                new File(Benchmarks.BENCHMARK_PATH+program+Parser.DEFAULT_FILE_EXTENSION);
+        parsed=Benchmarks.parse(file);
+        interpreterEngine=Interpreter.Engine.valueOf(engine);
+        context=Benchmarks.context();
+        arguments=new String[]{System.getProperty("user.dir")};
+        //native procedures write to System.out
+        stdOut=System.out;
+        System.setOut(Benchmarks.NULL_OUT);
+    }
+    @TearDown
+    public void tearDown(){
+        System.setOut(stdOut);
+    }
+
+    @Benchmark
+    public Object run(){
+        return new Interpreter(interpreterEngine).run(parsed,arguments,context);
+    }
+}
@@ -1,6 +1,8 @@
 import streams.*;
 
 import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
 import java.nio.charset.StandardCharsets;
 import java.util.Optional;
 
@@ -13,18 +15,38 @@ public class io{
 
     public static Optional<FileStream> nativeImpl_open(byte[] path, byte[] flags){
         try {
-            return Optional.of(new RandomAccessFileStream(
-                    new String(path,StandardCharsets.UTF_8),
-                    new String(flags,StandardCharsets.UTF_8)));
+            String options=new String(flags,StandardCharsets.UTF_8);
+            if(options.indexOf('m')>=0){//memory mapped file
+                return Optional.of(new MappedFileStream(new String(path,StandardCharsets.UTF_8),
+                        options.replace("m","")));
+            }
+            return Optional.of(new RandomAccessFileStream(new String(path,StandardCharsets.UTF_8),options));
         } catch (FileNotFoundException e) {
             return Optional.empty();
         }
     }
+    public static boolean nativeImpl_flush(FileStream file){
+        return file.flush();
+    }
     public static boolean nativeImpl_close(FileStream file){
         return file.close();
     }
-    public static long nativeImpl_read(FileStream file,byte[] buff,long off,long count){
-        return file.read(buff, off, count);
+    public static long nativeImpl_read(FileStream file,ByteBuffer buff,long off,long count){
+        if(off+count>buff.limit()){
+            throw new IndexOutOfBoundsException("Index out ouf Bounds: "+(off+count)+" length:"+buff.limit());
+        }
+        if(!buff.hasArray()){//buffers of mapped files are not backed by an array
+            if(buff.isReadOnly()){//fail before consuming bytes from the file
+                throw new ReadOnlyBufferException();
+            }
+            byte[] bytes=new byte[(int)count];
+            long r=file.read(bytes,0,count);
+            if(r>0){
+                buff.put((int)off,bytes,0,(int)r);
+            }
+            return r;
+        }
+        return file.read(buff.array(), buff.arrayOffset()+off, count);
     }
     public static long nativeImpl_read(FileStream file,Object[] buff,long off,long count){
         byte[] bytes = (byte[])buff[0];
@@ -49,11 +71,31 @@ public class io{
         buff[2]=(int)(bytes_len+nRead);
         return r;
     }
-    public static boolean nativeImpl_write(FileStream file,byte[] buff,long off,long count){
-        if(off+count>buff.length){
-            throw new IndexOutOfBoundsException("Index out ouf Bounds: "+(off+count)+" length:"+buff.length);
+    /**reads up to count bytes into buff starting at off,
+     * outputs: number of bytes read, true if the end of the file was reached, true if an IO-error occurred*/
+    public static void nativeImpl_readStatus(FileStream file,ByteBuffer buff,long off,long count,long[] out,Object[] refs){
+        long r=nativeImpl_read(file,buff,off,count);
+        out[0]=Math.max(r,0);
+        out[1]=r==-1?1:0;
+        out[2]=r==-2?1:0;
+    }
+    public static boolean nativeImpl_write(FileStream file,ByteBuffer buff,long off,long count){
+        if(off+count>buff.limit()){
+            throw new IndexOutOfBoundsException("Index out ouf Bounds: "+(off+count)+" length:"+buff.limit());
         }
-        return file.write(buff, off, count);
+        if(!buff.hasArray()){//buffers of mapped files are not backed by an array
+            byte[] bytes=new byte[(int)count];
+            buff.get((int)off,bytes);
+            return file.write(bytes,0,count);
+        }
+        return file.write(buff.array(), buff.arrayOffset()+off, count);
+    }
+    /**read-only view of count bytes of file starting at off, the bytes are not copied,
+     * refs[0] is set to the mapped buffer and out[1] to true if the file could be mapped*/
+    public static void nativeImpl_map(FileStream file,long off,long count,long[] out,Object[] refs){
+        ByteBuffer mapped=file.map(off, count);
+        refs[0]=mapped==null?new byte[0]:mapped;
+        out[1]=mapped==null?0:1;
     }
     public static long nativeImpl_size(FileStream file){
         return file.size();
@@ -1,5 +1,7 @@
 package streams;
 
+import java.nio.ByteBuffer;
+
 public interface FileStream {
 
     //TODO better handling of return codes
@@ -19,5 +21,15 @@ public interface FileStream {
 
     long pos();
 
+    /**read-only view of count bytes of the file starting at off, or null if the file cannot be mapped*/
+    default ByteBuffer map(long off, long count){
+        return null;
+    }
+
+    /**writes all buffered data to the underlying file*/
+    default boolean flush(){
+        return true;
+    }
+
     boolean close();
 }
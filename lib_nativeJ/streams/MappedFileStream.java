@@ -0,0 +1,147 @@
+package streams;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**FileStream that accesses the file through a memory mapped window,
+ * the window is remapped whenever a read or write leaves the currently mapped region*/
+public class MappedFileStream implements FileStream {
+    /**maximum size of a mapped window*/
+    static final long WINDOW_SIZE = 1L<<30;
+
+    final RandomAccessFile file;
+    final FileChannel channel;
+    final FileChannel.MapMode mode;
+    MappedByteBuffer window;
+    long windowStart;
+    long pos;
+
+    public MappedFileStream(String path, String options) throws FileNotFoundException {
+        this.file = new RandomAccessFile(path,options);
+        this.channel = file.getChannel();
+        this.mode = options.equals("r")?FileChannel.MapMode.READ_ONLY:FileChannel.MapMode.READ_WRITE;
+    }
+
+    /**maps a window starting at pos if pos is outside the current window,
+     * in write mode mapping a window that ends after the end of the file extends the file
+     * @param end end of the accessed region, the window will not exceed max(end,size)
+     * @return number of bytes between pos and min(end, end of window)*/
+    private int mapWindow(long end) throws IOException {
+        long windowEnd=window==null?-1:windowStart+window.capacity();
+        if(window==null||pos<windowStart||pos>=windowEnd||(windowEnd<end&&windowEnd-windowStart<WINDOW_SIZE)){
+            long mapSize=Math.min(WINDOW_SIZE,Math.max(channel.size(),end)-pos);
+            window=channel.map(mode,pos,mapSize);
+            windowStart=pos;
+            windowEnd=pos+mapSize;
+        }
+        return (int)(Math.min(windowEnd,end)-pos);
+    }
+
+    @Override
+    public long read(byte[] buff, long off, long count){
+        try {
+            long size=channel.size();
+            if(pos>=size){
+                return count==0?0:-1;
+            }
+            long start=pos;
+            long end=Math.min(size,pos+count);
+            while(pos<end){
+                int n=mapWindow(end);
+                window.get((int)(pos-windowStart),buff,(int)(off+pos-start),n);
+                pos+=n;
+            }
+            return pos-start;
+        } catch (IOException e) {
+            return -2;
+        }
+    }
+    @Override
+    public boolean write(byte[] buff, long off, long count){
+        if(mode==FileChannel.MapMode.READ_ONLY){
+            return false;
+        }
+        try {
+            long start=pos;
+            long end=pos+count;
+            while(pos<end){
+                int n=mapWindow(end);
+                window.put((int)(pos-windowStart),buff,(int)(off+pos-start),n);
+                pos+=n;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public long size(){
+        try {
+            return channel.size();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+    @Override
+    public boolean seek(long pos) {
+        if(pos<0){
+            return false;
+        }
+        this.pos=pos;
+        return true;
+    }
+    /**truncate file at current pos*/
+    @Override
+    public boolean truncate() {
+        try {
+            window=null;//the mapped window may exceed the new size of the file
+            channel.truncate(pos);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    @Override
+    public boolean seekEnd() {
+        try {
+            pos=channel.size();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    @Override
+    public long pos() {
+        return pos;
+    }
+    @Override
+    public ByteBuffer map(long off, long count) {
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY,off,count);
+        } catch (IOException|IllegalArgumentException e) {
+            return null;
+        }
+    }
+    @Override
+    public boolean flush() {
+        if(window!=null&&mode==FileChannel.MapMode.READ_WRITE){
+            window.force();
+        }
+        return true;
+    }
+    @Override
+    public boolean close(){
+        try {
+            window=null;
+            file.close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
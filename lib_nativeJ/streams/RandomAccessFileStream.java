@@ -1,6 +1,8 @@
 package streams;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 
 public class RandomAccessFileStream implements FileStream {
@@ -75,6 +77,14 @@ public class RandomAccessFileStream implements FileStream {
         }
     }
     @Override
+    public ByteBuffer map(long off, long count) {
+        try {
+            return file.getChannel().map(FileChannel.MapMode.READ_ONLY,off,count);
+        } catch (IOException|IllegalArgumentException e) {
+            return null;
+        }
+    }
+    @Override
     public boolean close(){
         try {
             file.close();
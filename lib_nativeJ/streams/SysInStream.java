@@ -5,6 +5,7 @@ public class SysInStream implements FileStream{
     @Override
     public long read(byte[] buff, long off, long count){
         try {
+            System.out.flush();//ensure prompts are visible before waiting for input
             count=System.in.read(buff,(int)off,(int)count);
             return count;
         } catch (IOException e) {
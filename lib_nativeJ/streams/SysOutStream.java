@@ -17,6 +17,12 @@ public class SysOutStream implements FileStream {
         return true;
     }
 
+    @Override
+    public boolean flush() {
+        (err?System.err:System.out).flush();
+        return true;
+    }
+
     @Override
     public long size(){
         return -1;
@@ -0,0 +1,330 @@
+package bsoelch.concat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**flat representation of a type-checked code section,
+ * each instruction is stored as an opcode followed by a fixed number of int operands,
+ * non-int operands (values, types, callees, ...) are stored in the constant pool*/
+final class ByteCode {
+    private ByteCode(){}
+
+    // opcode                     operands
+    static final int PUSH              = 0; // constant
+    static final int PUSH_CLONE        = 1; // constant
+    static final int CURRIED_LAMBDA    = 2; // constant (CurriedLambda)
+    static final int NEW_ARRAY         = 3; // constant (Section)
+    static final int CAST              = 4; // constant (Type) or -1
+    static final int NEW               = 5; // constant (Type) or -1
+    static final int DEBUG_PRINT       = 6;
+    static final int DEREFERENCE       = 7;
+    static final int ASSIGN            = 8;
+    static final int STACK_DROP        = 9; // offset count
+    static final int STACK_DUP         =10; // offset count
+    static final int STACK_ROT         =11; // count steps
+    static final int LOAD_GLOBAL       =12; // id
+    static final int LOAD_LOCAL        =13; // id
+    static final int LOAD_CURRIED      =14; // id
+    static final int REF_GLOBAL        =15; // id constant (Type)
+    static final int REF_LOCAL         =16; // id constant (Type)
+    static final int REF_CURRIED       =17; // id constant (Type)
+    static final int STORE_GLOBAL      =18; // id
+    static final int STORE_LOCAL       =19; // id
+    static final int ASSERT            =20; // constant (String)
+    static final int UNREACHABLE       =21;
+    static final int UNRESOLVED_PTR    =22;
+    static final int ILLEGAL           =23; // constant (String)
+    static final int TRAIT_FIELD       =24; // constant (TraitFieldCache)
+    static final int TRAIT_FIELD_UNWRAP=25; // constant (TraitFieldCache)
+    static final int CALL              =26; // constant (CallSite)
+    static final int CALL_PTR          =27;
+    static final int RETURN            =28;
+    static final int JUMP              =29; // target
+    static final int JUMP_IF_FALSE     =30; // target
+    static final int JUMP_IF_TRUE      =31; // target
+    static final int UNWRAP_OR_JUMP    =32; // target
+    static final int FOR_ARRAY_PREPARE =33;
+    static final int FOR_ARRAY_LOOP    =34; // target
+    static final int FOR_ARRAY_END     =35; // target
+    static final int FOR_ITERATOR_LOOP =36; // constant (TraitFieldCache) target
+    static final int SWITCH            =37; // constant (SwitchTable or IntSwitchTable)
+    static final int EXIT              =38;
+    static final int CAST_ARG          =39; // offset constant (Type)
+    static final int TUPLE_GET         =40; // index
+    static final int TUPLE_REF         =41; // index
+    static final int TUPLE_SET         =42; // index
+    static final int TAIL_CALL         =43; // constant (CallSite)
+    static final int INT_OP            =44; // operation unsigned(0/1)
+    static final int FLOAT_OP          =45; // operation
+
+    // operations of INT_OP and FLOAT_OP, applied to unboxed values
+    static final int OP_ADD = 0;
+    static final int OP_SUB = 1;
+    static final int OP_MUL = 2;
+    static final int OP_DIV = 3;
+    static final int OP_MOD = 4;
+    static final int OP_LT  = 5;
+    static final int OP_LE  = 6;
+    static final int OP_GT  = 7;
+    static final int OP_GE  = 8;
+    static final int OP_EQ  = 9;
+    static final int OP_NE  =10;
+
+    private static final int[] OPERAND_COUNT = {
+            1,1,1,1,1,1,0,0,0,2,2,2,1,1,1,2,2,2,1,1,1,0,0,1,1,1,1,0,0,1,1,1,1,0,1,1,2,1,0,2,1,1,1,1,2,1
+    };
+    static int size(int opcode){
+        return OPERAND_COUNT[opcode]+1;
+    }
+
+    /**@param code opcodes and their operands
+     * @param constants constant pool
+     * @param source token each instruction was created from (indexed by the position of the opcode), used for error messages
+     * @param context variable context of the code section, null for array-creators*/
+    record Section(int[] code, Object[] constants, Parser.Token[] source, Parser.VariableContext context){}
+
+    /**@param fromCurried true for values that are taken from the curried arguments of the enclosing procedure*/
+    record CurriedLambda(Value.Procedure procedure, boolean[] fromCurried, int[] ids){}
+    record SwitchTable(HashMap<Value,Integer> targets, int defaultTarget){}
+    /**call target of a static call, the code of called procedures is lowered lazily on the first call*/
+    static final class CallSite{
+        final Parser.Callable called;
+        Section code;
+        CallSite(Parser.Callable called) {
+            this.called = called;
+        }
+    }
+
+    static Section lower(Parser.CodeSection section){
+        ArrayList<Parser.Token> tokens=section.tokens();
+        //offsets of all tokens in the generated code, tokens that do not create any code
+        // have the same offset as the following token
+        int[] offsets=new int[tokens.size()+1];
+        int size=0;
+        for(int i=0;i<tokens.size();i++){
+            offsets[i]=size;
+            int op=opcode(tokens.get(i));
+            if(op>=0){
+                size+=size(op);
+            }
+        }
+        offsets[tokens.size()]=size;
+        Builder builder=new Builder(size);
+        for(int i=0;i<tokens.size();i++){
+            builder.lowerToken(tokens.get(i),i,offsets);
+        }
+        if(section.context()!=null){//replace calls directly followed by a return with tail-calls
+            int prevCall=-1;
+            for(int ip=0;ip<size;ip+=size(builder.code[ip])){
+                if(prevCall>=0&&builder.code[ip]==RETURN){
+                    builder.code[prevCall]=TAIL_CALL;
+                }
+                prevCall=builder.code[ip]==CALL?ip:-1;
+            }
+        }
+        return new Section(builder.code,builder.constants.toArray(),builder.source,section.context());
+    }
+
+    /**opcode of the instruction generated by the given token or -1 if the token does not produce any code*/
+    private static int opcode(Parser.Token next){
+        return switch (next.tokenType){
+            case NOP -> -1;
+            case LAMBDA, VALUE, GLOBAL_VALUE ->
+                    ((Parser.ValueToken) next).value.type.isDeeplyImmutable()?PUSH:PUSH_CLONE;
+            case CURRIED_LAMBDA -> CURRIED_LAMBDA;
+            case NEW_ARRAY -> NEW_ARRAY;
+            case CAST -> CAST;
+            case NEW -> NEW;
+            case DEBUG_PRINT -> DEBUG_PRINT;
+            case DEREFERENCE -> DEREFERENCE;
+            case ASSIGN -> ASSIGN;
+            case STACK_DROP -> STACK_DROP;
+            case STACK_DUP -> STACK_DUP;
+            case STACK_ROT -> STACK_ROT;
+            case VARIABLE -> {
+                Parser.VariableToken asVar=(Parser.VariableToken) next;
+                yield switch (asVar.accessType){
+                    case READ -> switch (asVar.variableType){
+                        case GLOBAL -> LOAD_GLOBAL;
+                        case LOCAL -> LOAD_LOCAL;
+                        case CURRIED -> LOAD_CURRIED;
+                    };
+                    case REFERENCE_TO -> switch (asVar.variableType){
+                        case GLOBAL -> REF_GLOBAL;
+                        case LOCAL -> REF_LOCAL;
+                        case CURRIED -> REF_CURRIED;
+                    };
+                    case DECLARE, WRITE -> switch (asVar.variableType){
+                        case GLOBAL -> STORE_GLOBAL;
+                        case LOCAL -> STORE_LOCAL;
+                        case CURRIED -> ILLEGAL;
+                    };
+                };
+            }
+            case ASSERT -> ASSERT;
+            case UNREACHABLE -> UNREACHABLE;
+            case OVERLOADED_PROC_PTR -> UNRESOLVED_PTR;
+            case DECLARE_LAMBDA, IDENTIFIER,REFERENCE_TO,OPTIONAL_OF,EMPTY_OPTIONAL,
+                    MARK_MUTABLE,MARK_MAYBE_MUTABLE,MARK_IMMUTABLE,MARK_INHERIT_MUTABILITY,ARRAY_OF,MEMORY_OF,STACK_SIZE ->
+                    ILLEGAL;
+            case CONTEXT_OPEN, CONTEXT_CLOSE -> -1;//variables are stored in the frame of the enclosing procedure
+            case TRAIT_FIELD_ACCESS -> ((Parser.TraitFieldAccess) next).isDirect?TRAIT_FIELD:TRAIT_FIELD_UNWRAP;
+            case CALL_PROC -> {
+                Parser.Callable called=((Parser.CallToken) next).called;
+                if(primitiveOperation(called)<0){
+                    yield CALL;
+                }
+                yield ((Value.InternalProcedure)called).type().inTypes[0]==Type.FLOAT?FLOAT_OP:INT_OP;
+            }
+            case CALL_PTR -> CALL_PTR;
+            case RETURN -> RETURN;
+            case BLOCK_TOKEN -> switch (((Parser.BlockToken)next).blockType){
+                case IF,_IF,DO -> JUMP_IF_FALSE;
+                case IF_OPTIONAL,_IF_OPTIONAL,DO_OPTIONAL -> UNWRAP_OR_JUMP;
+                case DO_WHILE -> JUMP_IF_TRUE;
+                case ELSE,END_WHILE, END_CASE,FOR_ITERATOR_END -> JUMP;
+                case WHILE,END_IF -> -1;
+                case FOR_ARRAY_PREPARE -> FOR_ARRAY_PREPARE;
+                case FOR_ARRAY_LOOP -> FOR_ARRAY_LOOP;
+                case FOR_ARRAY_END -> FOR_ARRAY_END;
+                case FOR_ITERATOR_LOOP -> FOR_ITERATOR_LOOP;
+                case FOR,SWITCH,CASE,DEFAULT, ARRAY, END, UNION_TYPE,TUPLE_TYPE,PROC_TYPE,ARROW,END_TYPE -> ILLEGAL;
+            };
+            case SWITCH -> SWITCH;
+            case EXIT -> EXIT;
+            case CAST_ARG -> CAST_ARG;
+            case TUPLE_GET_INDEX -> TUPLE_GET;
+            case TUPLE_REFERENCE_TO -> TUPLE_REF;
+            case TUPLE_SET_INDEX -> TUPLE_SET;
+        };
+    }
+
+    /**operation code of a call to a built-in operation on two ints, uints or floats of the same type
+     * that can be executed on unboxed values, or -1 if called is not such an operation*/
+    private static int primitiveOperation(Parser.Callable called){
+        if(!(called instanceof Value.InternalProcedure proc)){
+            return -1;
+        }
+        Type[] inTypes=proc.type().inTypes;
+        if(inTypes.length!=2||inTypes[0]!=inTypes[1]||
+                !(inTypes[0]==Type.INT()||inTypes[0]==Type.UINT()||inTypes[0]==Type.FLOAT)){
+            return -1;
+        }
+        return switch (proc.name){
+            case "+"  -> OP_ADD;
+            case "-"  -> OP_SUB;
+            case "*"  -> OP_MUL;
+            case "/"  -> OP_DIV;
+            case "%"  -> OP_MOD;
+            case "<"  -> OP_LT;
+            case "<=" -> OP_LE;
+            case ">"  -> OP_GT;
+            case ">=" -> OP_GE;
+            case "==" -> OP_EQ;
+            case "!=" -> OP_NE;
+            default -> -1;
+        };
+    }
+
+    private static class Builder{
+        final int[] code;
+        final Parser.Token[] source;
+        final ArrayList<Object> constants=new ArrayList<>();
+        int size=0;
+
+        Builder(int size) {
+            code=new int[size];
+            source=new Parser.Token[size];
+        }
+
+        int constant(Object value){
+            constants.add(value);
+            return constants.size()-1;
+        }
+        void emit(Parser.Token token,int opcode,int... operands){
+            assert operands.length==OPERAND_COUNT[opcode];
+            source[size]=token;
+            code[size++]=opcode;
+            for(int operand:operands){
+                code[size++]=operand;
+            }
+        }
+
+        void lowerToken(Parser.Token next,int index,int[] offsets){
+            int op=opcode(next);
+            switch (op){
+                case -1 -> {}
+                case PUSH, PUSH_CLONE -> emit(next,op,constant(((Parser.ValueToken) next).value));
+                case CURRIED_LAMBDA -> {
+                    Value.Procedure proc=(Value.Procedure)((Parser.ValueToken) next).value;
+                    boolean[] fromCurried=new boolean[proc.context.curried.size()];
+                    int[] ids=new int[proc.context.curried.size()];
+                    for(int i=0;i<ids.length;i++){
+                        Parser.VariableId id=proc.context.curried.get(i).source;
+                        fromCurried[i]=id instanceof Parser.CurriedVariable;
+                        ids[i]=id.id;
+                    }
+                    emit(next,op,constant(new CurriedLambda(proc,fromCurried,ids)));
+                }
+                case NEW_ARRAY -> emit(next,op,constant(lower((Parser.ArrayCreatorToken)next)));
+                case CAST -> {
+                    Type target=((Parser.CastToken)next).target;
+                    emit(next,op,target==null?-1:constant(target));
+                }
+                case NEW -> {
+                    Type target=((Parser.TypedToken)next).target;
+                    emit(next,op,target==null?-1:constant(target));
+                }
+                case DEBUG_PRINT, DEREFERENCE, ASSIGN, UNREACHABLE, UNRESOLVED_PTR,
+                        CALL_PTR, RETURN, FOR_ARRAY_PREPARE, EXIT -> emit(next,op);
+                case STACK_DROP, STACK_DUP, STACK_ROT ->
+                        emit(next,op,((Parser.StackModifierToken)next).args[0],((Parser.StackModifierToken)next).args[1]);
+                case LOAD_GLOBAL, LOAD_LOCAL, LOAD_CURRIED, STORE_GLOBAL, STORE_LOCAL ->
+                        emit(next,op,((Parser.VariableToken)next).id.id);
+                case REF_GLOBAL, REF_LOCAL, REF_CURRIED -> emit(next,op,((Parser.VariableToken)next).id.id,
+                        constant(((Parser.VariableToken)next).id.type));
+                case ASSERT -> emit(next,op,constant(((Parser.AssertToken)next).message));
+                case ILLEGAL -> {
+                    String message;
+                    if(next.tokenType== Parser.TokenType.VARIABLE){
+                        message="cannot declare curried variables";
+                    }else if(next.tokenType== Parser.TokenType.BLOCK_TOKEN){
+                        message="blocks of type "+((Parser.BlockToken)next).blockType+" should be eliminated at compile time";
+                    }else{
+                        message="Tokens of type " + next.tokenType + " should be eliminated at compile time";
+                    }
+                    emit(next,op,constant(message));
+                }
+                case TRAIT_FIELD, TRAIT_FIELD_UNWRAP -> emit(next,op,constant(((Parser.TraitFieldAccess) next).cache));
+                case CALL -> emit(next,op,constant(new CallSite(((Parser.CallToken) next).called)));
+                case INT_OP -> {
+                    Parser.Callable called=((Parser.CallToken) next).called;
+                    emit(next,op,primitiveOperation(called),
+                            ((Value.InternalProcedure)called).type().inTypes[0]==Type.UINT()?1:0);
+                }
+                case FLOAT_OP -> emit(next,op,primitiveOperation(((Parser.CallToken) next).called));
+                case JUMP, JUMP_IF_FALSE, JUMP_IF_TRUE, UNWRAP_OR_JUMP, FOR_ARRAY_LOOP, FOR_ARRAY_END ->
+                        emit(next,op,offsets[index+((Parser.BlockToken) next).delta]);
+                case FOR_ITERATOR_LOOP -> emit(next,op,constant(((Parser.ForIteratorLoop) next).cache),
+                        offsets[index+((Parser.BlockToken) next).delta]);
+                case SWITCH -> {
+                    Parser.SwitchCaseBlock block=((Parser.SwitchToken)next).block;
+                    if(block.intTable!=null){
+                        emit(next,op,constant(block.intTable.withTargets(d->offsets[index+d])));
+                    }else{
+                        HashMap<Value,Integer> targets=new HashMap<>(block.blockJumps.size());
+                        for(Map.Entry<Value, Integer> e:block.blockJumps.entrySet()){
+                            targets.put(e.getKey(),offsets[index+e.getValue()]);
+                        }
+                        emit(next,op,constant(new SwitchTable(targets,offsets[index+block.defaultJump])));
+                    }
+                }
+                case CAST_ARG -> emit(next,op,((Parser.ArgCastToken) next).offset,
+                        constant(((Parser.ArgCastToken) next).target));
+                case TUPLE_GET, TUPLE_REF, TUPLE_SET -> emit(next,op,((Parser.TupleElementAccess) next).index);
+                default -> throw new RuntimeException("unexpected opcode: "+op);
+            }
+        }
+    }
+}
@@ -0,0 +1,530 @@
+package bsoelch.concat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import static bsoelch.concat.ByteCode.*;
+
+/**execution engine for code lowered by {@link ByteCode},
+ * procedure calls do not recurse on the java stack but push a new frame onto an explicit call-stack*/
+final class ByteCodeInterpreter {
+    private final IOContext ioContext;
+    /**profiler for the executed procedures or null if profiling is disabled*/
+    private final Profiler profiler;
+    /**runtime counters or null if metrics are disabled*/
+    private final InterpreterMetrics metrics;
+    /**lowered code sections, indexed by their tokens (copies of procedures share the same token list)*/
+    private final IdentityHashMap<ArrayList<Parser.Token>,Section> lowered=new IdentityHashMap<>();
+
+    private static final class Frame{
+        Section section;
+        /**position of the currently executed instruction*/
+        int ip;
+        /**true if the instruction at ip called a procedure that returned and needs to be completed*/
+        boolean resumed;
+        OperandStack stack;
+        VariableSlots globalVariables;
+        VariableSlots variables;
+        /**true if the variables were allocated for this frame*/
+        boolean ownsVariables;
+        Value[] curried;
+        /**true if this frame evaluates the elements of an array literal*/
+        boolean arrayCreator;
+        /**true if the profiler has to be notified when this frame is removed*/
+        boolean profiled;
+    }
+    private Frame[] frames=new Frame[16];
+    private final FramePool framePool=new FramePool();
+    private int depth=0;
+    /**stack of the last finished array-creator frame*/
+    private OperandStack createdArray;
+
+    ByteCodeInterpreter(IOContext ioContext, Profiler profiler, InterpreterMetrics metrics) {
+        this.ioContext = ioContext;
+        this.profiler = profiler;
+        this.metrics = metrics;
+    }
+
+    Section lower(Parser.CodeSection section){
+        Section code=lowered.get(section.tokens());
+        if(code==null){
+            code=ByteCode.lower(section);
+            lowered.put(section.tokens(),code);
+        }
+        return code;
+    }
+
+    private Frame pushFrame(Section section, OperandStack stack, VariableSlots globalVariables,
+                            VariableSlots variables, Value[] curried, boolean arrayCreator){
+        if(depth==frames.length){
+            frames=Arrays.copyOf(frames,2*frames.length);
+        }
+        Frame frame=frames[depth];
+        if(frame==null){
+            frame=frames[depth]=new Frame();
+        }
+        depth++;
+        frame.ownsVariables=variables==null;
+        if(variables==null){
+            variables=framePool.allocateSlots(section.context().varCount());
+        }
+        frame.section=section;
+        frame.ip=0;
+        frame.resumed=false;
+        frame.stack=stack;
+        frame.globalVariables=globalVariables;
+        frame.variables=variables;
+        frame.curried=curried;
+        frame.arrayCreator=arrayCreator;
+        frame.profiled=false;
+        return frame;
+    }
+    /**removes the top frame from the call-stack
+     * @return the calling frame or null if the removed frame was the last frame*/
+    private Frame popFrame(){
+        Frame frame=frames[--depth];
+        if(frame.arrayCreator){
+            createdArray=frame.stack;
+        }
+        releaseVariables(frame);
+        if(frame.profiled){
+            profiler.exit();
+        }
+        frame.section=null;
+        frame.stack=null;
+        frame.globalVariables=null;
+        frame.variables=null;
+        frame.curried=null;
+        if(depth==0){
+            return null;
+        }
+        Frame caller=frames[depth-1];
+        caller.resumed=true;
+        return caller;
+    }
+    private void releaseVariables(Frame frame){
+        if(frame.ownsVariables){
+            framePool.releaseSlots(frame.variables,frame.section.context());
+            frame.ownsVariables=false;
+        }
+    }
+    /**prints the call-chain of the currently executed instruction and clears the call-stack*/
+    private void unwind(String indent){
+        while(depth>0){
+            Frame frame=frames[--depth];
+            Parser.Token token = frame.section.source()[frame.ip];
+            ioContext.stdErr.printf(indent+"while executing %-20s\n   at %s\n", token, token.pos);
+            indent="   ";
+        }
+    }
+
+    Interpreter.ExitType run(RandomAccessStack<Value> rootStack, Parser.CodeSection program, Value[] globalVariables){
+        OperandStack stack=new OperandStack(rootStack.size()+16);
+        for(Value v:rootStack){
+            stack.push(v);
+        }
+        try{
+            return run(stack,program,globalVariables);
+        }finally {//box the remaining values
+            try {
+                rootStack.drop(0,rootStack.size());
+            } catch (RandomAccessStack.StackUnderflow e) {
+                throw new RuntimeException(e);
+            }
+            for(Value v:stack.asList()){
+                rootStack.push(v);
+            }
+        }
+    }
+    private Interpreter.ExitType run(OperandStack rootStack, Parser.CodeSection program, Value[] globalVariables){
+        depth=0;
+        Frame frame=pushFrame(lower(program),rootStack,
+                globalVariables==null?null:new VariableSlots(globalVariables),null,null,false);
+        frames:
+        while(true){
+            final Section section=frame.section;
+            final int[] code=section.code();
+            final Object[] constants=section.constants();
+            final OperandStack stack=frame.stack;
+            final VariableSlots globals=frame.globalVariables;
+            final VariableSlots variables=frame.variables;
+            final Value[] curried=frame.curried;
+            boolean resumed=frame.resumed;
+            frame.resumed=false;
+            int ip=frame.ip;
+            try {
+                while(ip<code.length){
+                    int op=code[ip];
+                    int next=ip+size(op);
+                    if(metrics!=null){
+                        metrics.opcode(op,stack.size());
+                    }
+                    switch (op) {
+                        case PUSH -> stack.push((Value)constants[code[ip+1]]);
+                        case PUSH_CLONE -> stack.push(((Value)constants[code[ip+1]]).clone(true,null));
+                        case CURRIED_LAMBDA -> {
+                            CurriedLambda lambda=(CurriedLambda) constants[code[ip+1]];
+                            Value[] curried2=new Value[lambda.ids().length];
+                            for(int i=0;i<curried2.length;i++){
+                                curried2[i]=lambda.fromCurried()[i]?curried[lambda.ids()[i]]:variables.get(lambda.ids()[i]);
+                            }
+                            stack.push(lambda.procedure().withCurried(curried2));
+                        }
+                        case NEW_ARRAY -> {
+                            if(!resumed){
+                                Section elements=(Section) constants[code[ip+1]];
+                                frame.ip=ip;
+                                frame=pushFrame(elements,new OperandStack(elements.code().length),
+                                        globals,variables,curried,true);
+                                continue frames;
+                            }
+                            Value[] values=createdArray.asList().toArray(Value[]::new);
+                            createdArray=null;
+                            Type type=null;
+                            try {
+                                for(Value v:values){
+                                    type=Type.commonSuperTypeThrow(type,v.type,false);
+                                }
+                            }catch (WrappedConcatError e){
+                                throw e.wrapped;
+                            }
+                            for(int i=0;i<values.length;i++){
+                                values[i]=values[i].castTo(type);
+                            }
+                            stack.push(Value.createArray(Type.arrayOf(type),values));
+                        }
+                        case CAST -> {
+                            Type type=code[ip+1]<0?stack.pop().asType():(Type)constants[code[ip+1]];
+                            Value val = stack.pop();
+                            stack.push(val.castTo(type));
+                        }
+                        case NEW -> {
+                            Type type=code[ip+1]<0?stack.pop().asType():(Type)constants[code[ip+1]];
+                            if(type instanceof Type.TupleLike){
+                                int count=((Type.TupleLike)type).elementCount();
+                                Value[] values=new Value[count];
+                                for(int i=1;i<= values.length;i++){
+                                    values[count-i]= stack.pop();//values should already have the correct types
+                                }
+                                stack.push(Value.createTuple((Type.TupleLike)type,values));
+                            }else if(type.isMemory()){
+                                long initCap= stack.pop().asLong();
+                                stack.push(Value.createMemory(type,initCap));
+                            }else if(type.isArray()){
+                                long initCap = stack.pop().asLong();
+                                Value fill = stack.pop();
+                                stack.push(Value.createArray(type,fill,initCap));
+                            }else{
+                                throw new ConcatRuntimeError("new only supports arrays, memories, lists and tuples");
+                            }
+                        }
+                        case DEBUG_PRINT -> ioContext.stdOut.println(stack.pop().stringValue());
+                        case DEREFERENCE -> stack.push(((Value.ReferenceValue)stack.pop()).get());
+                        case ASSIGN -> {
+                            Value target=stack.pop();
+                            Value value=stack.pop();
+                            ((Value.ReferenceValue)target).set(value);
+                        }
+                        case STACK_DROP -> stack.drop(code[ip+1],code[ip+2]);
+                        case STACK_DUP -> stack.dup(code[ip+1],code[ip+2]);
+                        case STACK_ROT -> stack.rotate(code[ip+1],code[ip+2]);
+                        case LOAD_GLOBAL -> (globals==null?variables:globals).load(code[ip+1],stack);
+                        case LOAD_LOCAL -> localFrame(variables,globals).load(code[ip+1],stack);
+                        case LOAD_CURRIED -> stack.push(curried[code[ip+1]]);
+                        case REF_GLOBAL, REF_LOCAL, REF_CURRIED -> {
+                            Value[] values=switch (op){
+                                case REF_CURRIED -> curried;
+                                case REF_GLOBAL -> (globals==null?variables:globals).pin(code[ip+1]);
+                                default -> localFrame(variables,globals).pin(code[ip+1]);
+                            };
+                            stack.push(new Value.VariableReference((Type)constants[code[next-1]],values,code[ip+1]));
+                        }
+                        case STORE_GLOBAL -> (globals==null?variables:globals).store(code[ip+1],stack);
+                        case STORE_LOCAL -> localFrame(variables,globals).store(code[ip+1],stack);
+                        case ASSERT -> {
+                            if(!stack.pop().asBool()){
+                                throw new ConcatRuntimeError("assertion failed: "+constants[code[ip+1]]);
+                            }
+                        }
+                        case UNREACHABLE, UNRESOLVED_PTR -> {
+                            ioContext.stdErr.println((op==UNREACHABLE?"reached unreachable statement: ":
+                                    "unresolved overloaded procedure pointer: ")+section.source()[ip].pos);
+                            depth--;
+                            unwind("   ");
+                            return Interpreter.ExitType.ERROR;
+                        }
+                        case ILLEGAL -> throw new RuntimeException((String)constants[code[ip+1]]);
+                        case TRAIT_FIELD, TRAIT_FIELD_UNWRAP -> {
+                            if(!resumed){
+                                Value val = stack.peek();
+                                if(op==TRAIT_FIELD_UNWRAP){
+                                    if (!(val instanceof Value.TraitValue tv)) {
+                                        throw new RuntimeException("trait field access on non-trait value");
+                                    }
+                                    stack.pop();//call trait on unwrapped value
+                                    stack.push(tv.wrapped);
+                                    val=tv.wrapped;
+                                }
+                                Parser.Callable called=((TraitFieldCache)constants[code[ip+1]]).get(val.type);
+                                if(call(called,null,frame,ip)){
+                                    frame=frames[depth-1];
+                                    continue frames;
+                                }
+                            }
+                        }
+                        case CALL -> {
+                            if(!resumed){
+                                CallSite site=(CallSite) constants[code[ip+1]];
+                                if(call(site.called,site,frame,ip)){
+                                    frame=frames[depth-1];
+                                    continue frames;
+                                }
+                            }
+                        }
+                        case CALL_PTR -> {
+                            if(!resumed){
+                                Value ptr = stack.pop();
+                                if(!(ptr instanceof Parser.Callable)){
+                                    throw new ConcatRuntimeError("cannot call objects of type "+ptr.type);
+                                }
+                                if(call((Parser.Callable) ptr,null,frame,ip)){
+                                    frame=frames[depth-1];
+                                    continue frames;
+                                }
+                            }
+                        }
+                        case TAIL_CALL -> {
+                            CallSite site=(CallSite) constants[code[ip+1]];
+                            if(resumed){//called procedure in array-creator returned
+                                next=code.length;
+                            }else if(site.called instanceof Value.Procedure procedure&&!frame.arrayCreator){
+                                assert procedure.context.curried.isEmpty() || procedure.curriedArgs != null;
+                                if(site.code==null){
+                                    site.code=lower(procedure);
+                                }
+                                //reuse the current frame for the called procedure
+                                releaseVariables(frame);
+                                if(frame.profiled){
+                                    profiler.exit();
+                                }
+                                depth--;
+                                frame=pushFrame(site.code,stack,globals==null?variables:globals,
+                                        null,procedure.curriedArgs,false);
+                                if(profiler!=null){
+                                    profiler.enter(procedure);
+                                    frame.profiled=true;
+                                }
+                                continue frames;
+                            }else if(call(site.called,site,frame,ip)){
+                                frame=frames[depth-1];
+                                continue frames;
+                            }
+                        }
+                        case RETURN -> next=code.length;
+                        case JUMP -> next=code[ip+1];
+                        case JUMP_IF_FALSE -> {
+                            if (!stack.pop().asBool()) {
+                                next=code[ip+1];
+                            }
+                        }
+                        case JUMP_IF_TRUE -> {
+                            if (stack.pop().asBool()) {
+                                next=code[ip+1];
+                            }
+                        }
+                        case UNWRAP_OR_JUMP -> {
+                            Value c = stack.pop();
+                            if(c.hasValue()){
+                                stack.push(c.unwrap());
+                            }else{
+                                next=code[ip+1];
+                            }
+                        }
+                        case FOR_ARRAY_PREPARE -> stack.pushInt(0,true);
+                        case FOR_ARRAY_LOOP -> {
+                            long index=stack.popLong();
+                            Value.ArrayLike array=(Value.ArrayLike) stack.peek();
+                            if(index<array.length()){
+                                stack.pushInt(index,true);
+                                stack.push(array.get(index));
+                            }else{
+                                stack.pop();//array
+                                next=code[ip+1];
+                            }
+                        }
+                        case FOR_ARRAY_END -> {
+                            long index=stack.popLong();
+                            stack.pushInt(index+1,true);
+                            next=code[ip+1];
+                        }
+                        case FOR_ITERATOR_LOOP -> {
+                            if(!resumed){
+                                Value.TraitValue itr=(Value.TraitValue)stack.pop();
+                                stack.push(itr.wrapped);//call trait on unwrapped value
+                                Parser.Callable called=((TraitFieldCache)constants[code[ip+1]]).get(itr.wrapped.type);
+                                if(call(called,null,frame,ip)){
+                                    frame=frames[depth-1];
+                                    continue frames;
+                                }
+                            }
+                            Value nextValue=stack.pop();
+                            if(nextValue.hasValue()){
+                                stack.push(nextValue.unwrap());
+                            }else{
+                                stack.pop();//iterator
+                                next=code[ip+2];
+                            }
+                        }
+                        case SWITCH -> {
+                            if(constants[code[ip+1]] instanceof IntSwitchTable table){
+                                next=table.keyClass==IntSwitchTable.INT_VALUE&&stack.isUnboxedInt()?
+                                        table.target(stack.popLong()):table.target(stack.pop());
+                            }else{
+                                SwitchTable table=(SwitchTable) constants[code[ip+1]];
+                                Integer jumpTo=table.targets().get(stack.pop());
+                                next=jumpTo==null?table.defaultTarget():jumpTo;
+                            }
+                        }
+                        case EXIT -> {
+                            long exitCode=stack.pop().asLong();
+                            ioContext.stdErr.println("exited with exit code:"+exitCode);
+                            depth=0;
+                            return Interpreter.ExitType.FORCED;
+                        }
+                        case CAST_ARG -> stack.set(code[ip+1], stack.get(code[ip+1]).castTo((Type)constants[code[ip+2]]));
+                        case TUPLE_GET -> stack.push(stack.pop().getField(code[ip+1]));
+                        case TUPLE_REF -> {
+                            Value tuple = stack.pop();
+                            int index = code[ip+1];
+                            stack.push(new Value.FieldReference(((Type.TupleLike)tuple.type).getElement(index),tuple,index));
+                        }
+                        case TUPLE_SET -> {
+                            Value tuple = stack.pop();
+                            Value val  = stack.pop();
+                            tuple.set(code[ip+1], val);
+                        }
+                        case INT_OP -> {
+                            long b=stack.popLong();
+                            long a=stack.popLong();
+                            boolean unsigned=code[ip+2]!=0;
+                            switch (code[ip+1]){
+                                case OP_ADD -> stack.pushInt(a+b,unsigned);
+                                case OP_SUB -> stack.pushInt(a-b,unsigned);
+                                case OP_MUL -> stack.pushInt(a*b,unsigned);
+                                case OP_DIV -> stack.pushInt(unsigned?Long.divideUnsigned(a,b):a/b,unsigned);
+                                case OP_MOD -> stack.pushInt(unsigned?Long.remainderUnsigned(a,b):a%b,unsigned);
+                                default -> stack.push(Value.ofBool(compare(
+                                        unsigned?Long.compareUnsigned(a,b):Long.compare(a,b),code[ip+1])));
+                            }
+                        }
+                        case FLOAT_OP -> {
+                            double b=stack.popDouble();
+                            double a=stack.popDouble();
+                            switch (code[ip+1]){
+                                case OP_ADD -> stack.pushFloat(a+b);
+                                case OP_SUB -> stack.pushFloat(a-b);
+                                case OP_MUL -> stack.pushFloat(a*b);
+                                case OP_DIV -> stack.pushFloat(a/b);
+                                case OP_MOD -> stack.pushFloat(a%b);
+                                default -> stack.push(Value.ofBool(compare(Double.compare(a,b),code[ip+1])));
+                            }
+                        }
+                        default -> throw new RuntimeException("unexpected opcode: "+op);
+                    }
+                    resumed=false;
+                    ip=next;
+                }
+            }catch(ConcatRuntimeError|RandomAccessStack.StackUnderflow  e){
+                ioContext.stdErr.println(e.getMessage());
+                frame.ip=ip;
+                unwind("  ");
+                return Interpreter.ExitType.ERROR;
+            }catch(Throwable  t){//show expression in source code that crashed the interpreter
+                frame.ip=ip;
+                try {
+                    while(depth>0){
+                        Frame f=frames[--depth];
+                        Parser.Token token = f.section.source()[f.ip];
+                        ioContext.stdErr.printf("  while executing %-20s\n   at %s\n", token, token.pos);
+                    }
+                }catch (Throwable ignored){}//ignore exceptions while printing
+                throw t;
+            }
+            frame=popFrame();
+            if(frame==null){
+                return Interpreter.ExitType.NORMAL;
+            }
+        }
+    }
+    private static boolean compare(int cmp,int operation){
+        return switch (operation){
+            case OP_LT -> cmp <  0;
+            case OP_LE -> cmp <= 0;
+            case OP_GT -> cmp >  0;
+            case OP_GE -> cmp >= 0;
+            case OP_EQ -> cmp == 0;
+            case OP_NE -> cmp != 0;
+            default -> throw new IllegalArgumentException("unsupported comparison operation: " + operation);
+        };
+    }
+    private static VariableSlots localFrame(VariableSlots variables, VariableSlots globalVariables){
+        if (globalVariables == null) {
+            throw new RuntimeException("access to local variable outside of procedure");
+        }
+        return variables;
+    }
+
+    /**calls the given procedure from the instruction at ip in the given frame,
+     * native procedures are executed directly
+     * @return true if a new frame was pushed to the call-stack*/
+    private boolean call(Parser.Callable called, CallSite site, Frame frame, int ip)
+            throws RandomAccessStack.StackUnderflow, ConcatRuntimeError {
+        if(called instanceof Value.NativeProcedure nativeProc){
+            OperandStack stack=frame.stack;
+            int count=nativeProc.argCount();
+            Value[] args=new Value[count];
+            for(int i=count-1;i>=0;i--){
+                args[i]= stack.pop();
+            }
+            if(profiler!=null&&nativeProc instanceof Value.InternalProcedure){
+                profiler.count(nativeProc);
+                args=metrics!=null?metrics.callNative(nativeProc,args):nativeProc.callWith(args);
+            }else if(profiler!=null){
+                profiler.enter(nativeProc);
+                try{
+                    args=metrics!=null?metrics.callNative(nativeProc,args):nativeProc.callWith(args);
+                }finally {
+                    profiler.exit();
+                }
+            }else{
+                args=metrics!=null?metrics.callNative(nativeProc,args):nativeProc.callWith(args);
+            }
+            for (Value arg : args) {
+                stack.push(arg);
+            }
+            return false;
+        }else if(called instanceof Value.Procedure procedure){
+            assert procedure.context.curried.isEmpty() || procedure.curriedArgs != null;
+            Section code;
+            if(site!=null){
+                if(site.code==null){
+                    site.code=lower(procedure);
+                }
+                code=site.code;
+            }else{
+                code=lower(procedure);
+            }
+            frame.ip=ip;
+            Frame callee=pushFrame(code,frame.stack,frame.globalVariables==null?frame.variables:frame.globalVariables,
+                    null,procedure.curriedArgs,false);
+            if(profiler!=null){
+                profiler.enter(procedure);
+                callee.profiled=true;
+            }
+            return true;
+        }else{
+            throw new RuntimeException("unexpected callable type: "+ called.getClass());
+        }
+    }
+}
@@ -7,6 +7,12 @@ public interface CodeGenerator {
     CodeGenerator indent();
     CodeGenerator dedent();
     CodeGenerator changeStackPointer(int k) throws IOException;
+    /**writes all values that are stored outside the stack memory to the stack and updates the stack-pointer,
+     * the top keep values are kept in local variables and can be read after the flush*/
+    CodeGenerator flushStack(int keep) throws IOException;
+    CodeGenerator stackDup(int offset, int count) throws IOException;
+    CodeGenerator stackDrop(int offset, int count) throws IOException;
+    CodeGenerator stackRotate(int count, int steps) throws IOException;
 
     CodeGenerator lineComment(String str) throws IOException;
     CodeGenerator blockComment(String str) throws IOException;
@@ -29,6 +29,7 @@ public class Compiler {
     public static final String CTYPE_FPTR = "FPtr";
     public static final String CTYPE_OPTIONAL_I32 = "optionalI32";
     public static final String CTYPE_OPTIONAL_U32 = "optionalU32";
+    public static final String CTYPE_MEMORY = "Memory";
 
     static final String CONCAT_PROC_OUT="void";
     static final String CONCAT_PROC_SIGNATURE="(Stack*, "+STACK_DATA_TYPE+"*)";
@@ -37,18 +38,50 @@ public class Compiler {
     public static final String PUBLIC_PROC_PREFIX = "concat_public_procedure_";
     public static final String PRIVATE_PROC_PREFIX = "concat_private_procedure_";
     public static final String CONST_ARRAY_PREFIX = "concat_const_array_";
+    static final String ALLOC_FUNCTION = "concat_alloc";
+    static final String ARENA_BLOCK_SIZE = "CONCAT_ARENA_BLOCK_SIZE";
+    static final String MEMORY_NEW = "concat_memory_new";
+    static final String MEMORY_REALLOC = "concat_memory_realloc";
+    static final String MEMORY_SET_OFFSET = "concat_memory_set_offset";
+    static final String MEMORY_APPEND = "concat_memory_append";
+    static final String MEMORY_PREPEND = "concat_memory_prepend";
+    static final String MEMORY_RESERVE = "concat_memory_reserve";
+    static final String MEMORY_COPY = "concat_memory_copy";
+    static final String MEMORY_COPY_TO_SLICE = "concat_memory_copy_to_slice";
+    static final String MEMORY_CLEAR_SLICE = "concat_memory_clear_slice";
 
     static final String STACK_FIELD_DATA="data";
 
     static final String STACK_FIELD_POINTER="ptr";
     static final String STACK_FIELD_CAPACITY="capacity";
 
+    /**
+     * Code generator that simulates the stack at compile time: values pushed to the stack are stored in C local variables
+     * and changes of the stack-pointer are delayed, values are only written to the real stack
+     * if their memory is accessed directly ({@link #getRaw(int)}) or the stack is flushed ({@link #flushStack(int)})
+     */
     private static final class CodeGeneratorImpl implements CodeGenerator {
+        /**local variable holding the value of a stack slot, slots with type null contain a raw stack value*/
+        private record Slot(String name,BaseType.StackValue type){}
+
         final BufferedWriter out;
         private int indent;
 
         /**true if in the previous line has not been finished*/
         private boolean unfinishedLine = false;
+        /**content of the current line, spill code is written before the current line*/
+        private final StringBuilder line = new StringBuilder();
+
+        /**stack slots that are stored in local variables indexed by their position on the simulated stack,
+         * slots without entry are stored on the real stack*/
+        private final HashMap<Integer,Slot> slots = new HashMap<>();
+        /**slots assigned in the current line, the new values are visible after the end of the line*/
+        private final HashMap<Integer,Slot> assigned = new HashMap<>();
+        /**position of the top of the simulated stack*/
+        private int top;
+        /**position of the stack-pointer in the generated code*/
+        private int stackPointer;
+        private int localCount;
 
         private CodeGeneratorImpl(BufferedWriter out) {
             this.out = out;
@@ -70,34 +103,162 @@ public class Compiler {
             return this;
         }
 
-        @Override
-        public CodeGenerator changeStackPointer(int k) throws IOException {
-            startLine();
-            if(k<0){
-                out.write(STACK_ARG_NAME+"->"+STACK_FIELD_POINTER+" -= "+(-k));
+        /**values of optional types are stored as C-arrays and cannot be assigned to local variables*/
+        private static boolean isArray(BaseType.StackValue type){
+            return type== BaseType.Primitive.OPTIONAL_I32||type== BaseType.Primitive.OPTIONAL_U32;
+        }
+        private String address(int pos){
+            int offset=pos-stackPointer;
+            if(offset>0){
+                return "(("+STACK_ARG_NAME+"->"+STACK_FIELD_POINTER+")+"+offset+")";
+            }else if(offset<0){
+                return "(("+STACK_ARG_NAME+"->"+STACK_FIELD_POINTER+")-"+(-offset)+")";
+            }else{
+                return "("+STACK_ARG_NAME+"->"+STACK_FIELD_POINTER+")";
+            }
+        }
+        /**writes a statement before the current line*/
+        private void insertStatement(String statement) throws IOException {
+            writeLine(out,indent,statement+";");
+        }
+        /**writes the slot at pos to the real stack*/
+        private void spill(int pos) throws IOException {
+            Slot slot=slots.remove(pos);
+            if(slot==null)
+                return;
+            if(slot.type==null){
+                insertStatement("*"+address(pos)+" = "+slot.name);
+            }else{
+                insertStatement(address(pos)+"->"+typeWrapperName(slot.type)+" = "+slot.name);
+            }
+        }
+        private void spillAll() throws IOException {
+            for(int pos:new TreeSet<>(slots.keySet())){
+                spill(pos);
+            }
+        }
+        /**loads the slot at pos into a local variable*/
+        private Slot load(int pos) throws IOException {
+            Slot slot=slots.get(pos);
+            if(slot==null){
+                slot=new Slot("tmp_"+(localCount++),null);
+                insertStatement(STACK_DATA_TYPE+" "+slot.name+" = *"+address(pos));
+                slots.put(pos,slot);
+            }
+            return slot;
+        }
+        private String read(int pos,BaseType.StackValue type) throws IOException {
+            Slot slot=slots.get(pos);
+            if(slot!=null&&slot.type!=null&&isArray(type)){
+                spill(pos);
+                slot=null;
+            }
+            if(slot==null){
+                return "("+address(pos)+"->"+typeWrapperName(type)+")";
+            }else if(slot.type==null){
+                return "("+slot.name+"."+typeWrapperName(type)+")";
+            }else if(slot.type==type){
+                return slot.name;
+            }
+            //reinterpret the value in the same way as a read of a different field of the stack value
+            return "((("+STACK_DATA_TYPE+"){."+typeWrapperName(slot.type)+" = "+slot.name+"})."+typeWrapperName(type)+")";
+        }
+        private void write(int pos,BaseType.StackValue type) throws IOException {
+            if(!unfinishedLine)
+                startLine();
+            if(isArray(type)){
+                spill(pos);
+                assigned.remove(pos);
+                line.append(address(pos)).append("->").append(typeWrapperName(type)).append(" = ");
             }else{
-                out.write(STACK_ARG_NAME+"->"+STACK_FIELD_POINTER+" += "+k);
+                Slot slot=new Slot("tmp_"+(localCount++),type);
+                assigned.put(pos,slot);
+                line.append(type.cType).append(" ").append(slot.name).append(" = ");
             }
-            return endLine();
         }
 
         @Override
-        public CodeGenerator lineComment(String str) throws IOException {
-            if(unfinishedLine){
+        public CodeGenerator changeStackPointer(int k) {
+            top+=k;
+            return this;
+        }
+        @Override
+        public CodeGenerator flushStack(int keep) throws IOException {
+            if(unfinishedLine)
                 endLine();
+            int newStackPointer=top-keep;
+            for(int pos=newStackPointer;pos<top;pos++){
+                load(pos);
             }
-            startLine();
-            out.write("// "+str.replace('\n',' ').replace('\r',' '));
-            newLine();
+            for(int pos:new TreeSet<>(slots.keySet())){
+                if(pos<newStackPointer){
+                    spill(pos);
+                }else if(pos>=top){
+                    slots.remove(pos);
+                }
+            }
+            if(newStackPointer>stackPointer){
+                insertStatement(STACK_ARG_NAME+"->"+STACK_FIELD_POINTER+" += "+(newStackPointer-stackPointer));
+            }else if(newStackPointer<stackPointer){
+                insertStatement(STACK_ARG_NAME+"->"+STACK_FIELD_POINTER+" -= "+(stackPointer-newStackPointer));
+            }
+            stackPointer=newStackPointer;
+            return this;
+        }
+
+        @Override
+        public CodeGenerator stackDup(int offset, int count) throws IOException {
+            if(unfinishedLine)
+                endLine();
+            int start=top-offset-count;
+            for(int i=0;i<count;i++){
+                Slot src=slots.get(start+i);
+                Slot copy=new Slot("tmp_"+(localCount++),src==null?null:src.type);
+                insertStatement((copy.type==null?STACK_DATA_TYPE:copy.type.cType)+" "+copy.name+" = "+
+                        (src==null?"*"+address(start+i):src.name));
+                slots.put(top+i,copy);
+            }
+            top+=count;
             return this;
         }
         @Override
+        public CodeGenerator stackDrop(int offset, int count) throws IOException {
+            if(unfinishedLine)
+                endLine();
+            int start=top-offset;
+            for(int i=0;i<offset;i++){
+                slots.put(start-count+i,load(start+i));
+            }
+            top-=count;
+            slots.keySet().removeIf(pos->pos>=top);
+            return this;
+        }
+        @Override
+        public CodeGenerator stackRotate(int count, int steps) throws IOException {
+            if(unfinishedLine)
+                endLine();
+            int start=top-count;
+            Slot[] rotated=new Slot[count];
+            for(int i=0;i<count;i++){
+                rotated[i]=load(start+(i+steps)%count);
+            }
+            for(int i=0;i<count;i++){
+                slots.put(start+i,rotated[i]);
+            }
+            return this;
+        }
+
+        @Override
+        public CodeGenerator lineComment(String str) throws IOException {
+            startLine();
+            line.append("// ").append(str.replace('\n',' ').replace('\r',' '));
+            return newLine();
+        }
+        @Override
         public CodeGenerator blockComment(String str) throws IOException {
             if(!unfinishedLine)
                 startLine();
-            out.write("/* ");
-            out.write(str.replace("*/","* /"));
-            out.write(" */");
+            line.append("/* ").append(str.replace("*/","* /")).append(" */");
             return this;
         }
 
@@ -106,126 +267,105 @@ public class Compiler {
             if(unfinishedLine)
                 endLine();
             unfinishedLine = true;
-            writeIndent(out,indent);
+            if(indent>0){
+                line.append("  ".repeat(indent));
+            }
             return this;
         }
 
-        void pushRaw() throws IOException {
-            if (!unfinishedLine)
-                startLine();
-            out.write("(" + STACK_ARG_NAME + "->" + STACK_FIELD_POINTER + "++)");
-        }
         @Override
         public CodeGenerator pushPrimitive(BaseType.StackValue target) throws IOException {
-            pushRaw();
-            out.write("->"+typeWrapperName(target)+" = ");
+            write(top++,target);
             return this;
         }
         @Override
         public CodeGenerator pushPointer(Type target) throws IOException {
-            pushRaw();
-            out.write("->"+typeWrapperName(target.baseType().pointerTo())+" = ");
-            return this;
+            return pushPrimitive(target.baseType().pointerTo());
         }
 
         @Override
         public CodeGenerator assignPrimitive(int offset, BaseType.StackValue target) throws IOException {
-            getRaw(offset);
-            out.write("->"+typeWrapperName(target)+" = ");
+            write(top-offset,target);
             return this;
         }
         @Override
         public CodeGenerator assignPointer(int offset, Type target, boolean assignValue) throws IOException {
-            if(!unfinishedLine)
-                startLine();
-            out.write((assignValue?"*":""));
-            getRaw(offset);
-            out.write("->"+typeWrapperName(target.baseType().pointerTo())+" = ");
+            if(assignValue){
+                if(!unfinishedLine)
+                    startLine();
+                line.append("*").append(read(top-offset,target.baseType().pointerTo())).append(" = ");
+            }else{
+                write(top-offset,target.baseType().pointerTo());
+            }
             return this;
         }
 
-        @Override
-        public CodeGenerator newLine() throws IOException {
+        private void finishLine(String end) throws IOException {
             if(unfinishedLine){
+                out.write(line.append(end).toString());
                 out.newLine();
+                line.setLength(0);
                 unfinishedLine = false;
+                slots.putAll(assigned);
+                assigned.clear();
             }
+        }
+        @Override
+        public CodeGenerator newLine() throws IOException {
+            finishLine("");
             return this;
         }
         @Override
         public CodeGenerator endLine() throws IOException {
-            if(unfinishedLine){
-                out.write(";");
-                out.newLine();
-                unfinishedLine = false;
-            }
+            finishLine(";");
             return this;
         }
-        void popRaw() throws IOException {
-            if(!unfinishedLine)
-                startLine();
-            out.write("(--("+STACK_ARG_NAME+"->"+STACK_FIELD_POINTER+"))");
-        }
         @Override
         public CodeGenerator popPrimitive(BaseType.StackValue type) throws IOException {
             if(!unfinishedLine)
                 startLine();
-            out.write("(");
-            popRaw();
-            out.write("->"+typeWrapperName(type)+")");
+            line.append(read(--top,type));
             return this;
         }
         @Override
         public CodeGenerator getRaw(int offset) throws IOException {
             if(!unfinishedLine)
                 startLine();
-            if(offset<0){
-                out.write("(("+STACK_ARG_NAME+"->"+STACK_FIELD_POINTER+")+"+(-offset)+")");
-            }else if(offset>0){
-                out.write("(("+STACK_ARG_NAME+"->"+STACK_FIELD_POINTER+")-"+offset+")");
-            }else{
-                out.write("("+STACK_ARG_NAME+"->"+STACK_FIELD_POINTER+")");
-            }
+            spillAll();
+            line.append(address(top-offset));
             return this;
         }
         @Override
         public CodeGenerator getPrimitive(int offset, BaseType.StackValue type) throws IOException {
             if(!unfinishedLine)
                 startLine();
-            out.write("(");
-            getRaw(offset);
-            out.write("->"+typeWrapperName(type)+")");
+            line.append(read(top-offset,type));
             return this;
         }
         @Override
         public CodeGenerator getPointer(int offset, Type type) throws IOException {
-            if(!unfinishedLine)
-                startLine();
-            out.write("(");
-            getRaw(offset);
-            out.write("->"+typeWrapperName(type.baseType().pointerTo())+")");
-            return this;
+            return getPrimitive(offset,type.baseType().pointerTo());
         }
         @Override
         public CodeGenerator getPrimitiveAs(int offset, BaseType.StackValue src, BaseType.StackValue target) throws IOException {
             if(!unfinishedLine)
                 startLine();
             //TODO check if C-cast is allowed
-            out.write("(("+target.cType+")");
+            line.append("((").append(target.cType).append(")");
             getPrimitive(offset,src);
-            out.write(")");
+            line.append(")");
             return this;
         }
 
         @Override
-        public CodeGenerator appendBool(boolean value) throws IOException {
-            out.write(value?"true":"false");
+        public CodeGenerator appendBool(boolean value) {
+            line.append(value?"true":"false");
             return this;
         }
 
         @Override
-        public CodeGenerator appendInt(long value, int bits, boolean signed) throws IOException {
-            out.write(signed? value +"LL": Long.toUnsignedString(value)+"ULL");
+        public CodeGenerator appendInt(long value, int bits, boolean signed) {
+            line.append(signed? value +"LL": Long.toUnsignedString(value)+"ULL");
             return this;
         }
 
@@ -235,7 +375,7 @@ public class Compiler {
                 throw new UnsupportedOperationException("currently only primitive types are supported");
             }
             int id=typeIds.get(type);
-            out.write(""+id);
+            line.append(id);
             blockComment(type.name);
             return this;
         }
@@ -244,7 +384,7 @@ public class Compiler {
         public CodeGenerator append(String s) throws IOException {
             if(!unfinishedLine)
                 startLine();
-            out.write(s);
+            line.append(s);
             return this;
         }
     }
@@ -383,6 +523,183 @@ public class Compiler {
         }
         writeLine(writer,"};");
         writer.newLine();
+        writeComment(writer,"arena allocator for arrays and tuples, the memory is released when the program exits");
+        writeLine(writer,"#define "+ARENA_BLOCK_SIZE+" 65536");
+        writeLine(writer,"static char* concat_arena_ptr = NULL;");
+        writeLine(writer,"static size_t concat_arena_remaining = 0;");
+        writeLine(writer,"static void* concat_checked_malloc(size_t size){");
+        writeLine(writer,1,"void* res = malloc(size);");
+        writeLine(writer,1,"if(res == NULL){");
+        writeLine(writer,2,"fputs(\"out of memory\\n\", stderr);");
+        writeLine(writer,2,"exit(0xa110c);");
+        writeLine(writer,1,"}");
+        writeLine(writer,1,"return res;");
+        writeLine(writer,"}");
+        writeLine(writer,"static void* "+ALLOC_FUNCTION+"(size_t size){");
+        writeLine(writer,1,"size = (size + 7) & ~(size_t)7;");
+        writeLine(writer,1,"if(size > concat_arena_remaining){");
+        writeLine(writer,2,"if(size > "+ARENA_BLOCK_SIZE+"/4){//allocate large values outside the arena");
+        writeLine(writer,3,"return concat_checked_malloc(size);");
+        writeLine(writer,2,"}");
+        writeLine(writer,2,"concat_arena_ptr = concat_checked_malloc("+ARENA_BLOCK_SIZE+");");
+        writeLine(writer,2,"concat_arena_remaining = "+ARENA_BLOCK_SIZE+";");
+        writeLine(writer,1,"}");
+        writeLine(writer,1,"void* res = concat_arena_ptr;");
+        writeLine(writer,1,"concat_arena_ptr += size;");
+        writeLine(writer,1,"concat_arena_remaining -= size;");
+        writeLine(writer,1,"return res;");
+        writeLine(writer,"}");
+        writer.newLine();
+        printMemoryFunctions(writer);
+    }
+    /**memories are stored as a pointer to a header that owns a region of size elements,
+     * the elements are stored in the same format as the elements of arrays,
+     * reallocating a memory copies its elements to a new region of the arena*/
+    private static void printMemoryFunctions(BufferedWriter writer) throws IOException {
+        writeComment(writer,"memories, elements between offset and offset+length are initialized");
+        writeLine(writer,"typedef struct{");
+        writeLine(writer,1,"char* data;");
+        writeLine(writer,1,"uint64_t size;");
+        writeLine(writer,1,"uint64_t offset;");
+        writeLine(writer,1,"uint64_t length;");
+        writeLine(writer,"}"+CTYPE_MEMORY+";");
+        writeLine(writer,"static "+CTYPE_MEMORY+"* "+MEMORY_NEW+"(uint64_t size, size_t elementSize){");
+        writeLine(writer,1,CTYPE_MEMORY+"* mem = "+ALLOC_FUNCTION+"(sizeof("+CTYPE_MEMORY+"));");
+        writeLine(writer,1,"mem->data = "+ALLOC_FUNCTION+"(size * elementSize);");
+        writeLine(writer,1,"mem->size = size;");
+        writeLine(writer,1,"mem->offset = 0;");
+        writeLine(writer,1,"mem->length = 0;");
+        writeLine(writer,1,"return mem;");
+        writeLine(writer,"}");
+        writeLine(writer,"static void "+MEMORY_REALLOC+"("+CTYPE_MEMORY+"* mem, uint64_t newSize, size_t elementSize){");
+        writeLine(writer,1,"if(newSize < mem->offset + mem->length){");
+        writeLine(writer,2,"fprintf(stderr,\"newSize %\"PRIu64\" outside allowed range: %\"PRIu64\" to %\"PRIu64\"\\n\", " +
+                "newSize, mem->offset + mem->length, (uint64_t)SIZE_MAX / elementSize);");
+        writeLine(writer,2,"exit(0xa11a7);");
+        writeLine(writer,1,"}");
+        writeLine(writer,1,"char* data = "+ALLOC_FUNCTION+"(newSize * elementSize);");
+        writeLine(writer,1,"memcpy(data + mem->offset * elementSize, mem->data + mem->offset * elementSize, " +
+                "mem->length * elementSize);");
+        writeLine(writer,1,"mem->data = data;");
+        writeLine(writer,1,"mem->size = newSize;");
+        writeLine(writer,"}");
+        writeLine(writer,"static void "+MEMORY_SET_OFFSET+"("+CTYPE_MEMORY+"* mem, int64_t newOffset, size_t elementSize){");
+        writeLine(writer,1,"if(newOffset < 0 || (uint64_t)newOffset + mem->length > mem->size){");
+        writeLine(writer,2,"fprintf(stderr,\"offset %\"PRIi64\" outside allowed range: 0 to %\"PRIu64\"\\n\", " +
+                "newOffset, mem->size - mem->length);");
+        writeLine(writer,2,"exit(0xa11a7);");
+        writeLine(writer,1,"}");
+        writeLine(writer,1,"memmove(mem->data + newOffset * elementSize, mem->data + mem->offset * elementSize, " +
+                "mem->length * elementSize);");
+        writeLine(writer,1,"mem->offset = newOffset;");
+        writeLine(writer,"}");
+        writeComment(writer,"address of the element appended/prepended to mem");
+        writeLine(writer,"static char* "+MEMORY_APPEND+"("+CTYPE_MEMORY+"* mem, size_t elementSize){");
+        writeLine(writer,1,"if(mem->offset + mem->length >= mem->size){");
+        writeLine(writer,2,"fputs(\"cannot append value, array reached upper boundary of memory\\n\", stderr);");
+        writeLine(writer,2,"exit(0xa11a7);");
+        writeLine(writer,1,"}");
+        writeLine(writer,1,"return mem->data + (mem->offset + mem->length++) * elementSize;");
+        writeLine(writer,"}");
+        writeLine(writer,"static char* "+MEMORY_PREPEND+"("+CTYPE_MEMORY+"* mem, size_t elementSize){");
+        writeLine(writer,1,"if(mem->offset == 0){");
+        writeLine(writer,2,"fputs(\"cannot prepend value, array reached lower boundary of memory\\n\", stderr);");
+        writeLine(writer,2,"exit(0xa11a7);");
+        writeLine(writer,1,"}");
+        writeLine(writer,1,"mem->length++;");
+        writeLine(writer,1,"return mem->data + --mem->offset * elementSize;");
+        writeLine(writer,"}");
+        writeComment(writer,"adds the count elements starting at off (relative to the offset of mem) to the initialized section,\n" +
+                "returns the address of the first element");
+        writeLine(writer,"static char* "+MEMORY_RESERVE+"("+CTYPE_MEMORY+"* mem, int64_t off, uint64_t count, size_t elementSize){");
+        writeLine(writer,1,"if(off < -(int64_t)mem->offset || mem->offset + off + count > mem->size){");
+        writeLine(writer,2,"fprintf(stderr,\"invalid offset for copy: %\"PRIi64\" offset has to be between %\"PRIi64\" and " +
+                "%\"PRIi64\" to fit the array into the allocated region\\n\", off, -(int64_t)mem->offset, " +
+                "(int64_t)(mem->size - mem->offset - count));");
+        writeLine(writer,2,"exit(0xa11a7);");
+        writeLine(writer,1,"}");
+        writeLine(writer,1,"if(mem->length > 0 && (off + (int64_t)count < 0 || off > (int64_t)mem->length)){" +
+                "//ensure there are no gaps in initialized memory");
+        writeLine(writer,2,"fprintf(stderr,\"invalid offset for copy: %\"PRIi64\" offset has to be between %\"PRIi64\" and " +
+                "%\"PRIu64\" to ensure a continuous section of initialized memory\\n\", off, -(int64_t)count, mem->length);");
+        writeLine(writer,2,"exit(0xa11a7);");
+        writeLine(writer,1,"}");
+        writeLine(writer,1,"uint64_t start = mem->offset + off;");
+        writeLine(writer,1,"uint64_t end = start + count > mem->offset + mem->length ? start + count : mem->offset + mem->length;");
+        writeLine(writer,1,"if(start < mem->offset){");
+        writeLine(writer,2,"mem->offset = start;");
+        writeLine(writer,1,"}");
+        writeLine(writer,1,"mem->length = end - mem->offset;");
+        writeLine(writer,1,"return mem->data + start * elementSize;");
+        writeLine(writer,"}");
+        writeLine(writer,"static void "+MEMORY_COPY+"(const char* src, uint64_t srcLength, uint64_t srcOff, " +
+                CTYPE_MEMORY+"* mem, int64_t off, uint64_t count, size_t elementSize){");
+        writeLine(writer,1,"if(srcOff + count > srcLength){");
+        writeLine(writer,2,"fprintf(stderr,\"invalid source offset for copy: %\"PRIu64\" count: %\"PRIu64\" " +
+                "source length: %\"PRIu64\"\\n\", srcOff, count, srcLength);");
+        writeLine(writer,2,"exit(0xa11a7);");
+        writeLine(writer,1,"}");
+        writeLine(writer,1,"memmove("+MEMORY_RESERVE+"(mem, off, count, elementSize), src + srcOff * elementSize, " +
+                "count * elementSize);");
+        writeLine(writer,"}");
+        writeComment(writer,"replaces the elements between sliceStart and sliceEnd with count elements of src");
+        writeLine(writer,"static void "+MEMORY_COPY_TO_SLICE+"(const char* src, uint64_t srcLength, uint64_t srcOff, " +
+                CTYPE_MEMORY+"* mem, uint64_t sliceStart, uint64_t sliceEnd, uint64_t count, size_t elementSize){");
+        writeLine(writer,1,"if(sliceEnd < sliceStart || sliceEnd > mem->length){");
+        writeLine(writer,2,"fprintf(stderr,\"invalid target slice for copyToSlice: %\"PRIu64\":%\"PRIu64\" " +
+                "length:%\"PRIu64\"\\n\", sliceStart, sliceEnd, mem->length);");
+        writeLine(writer,2,"exit(0xa11a7);");
+        writeLine(writer,1,"}");
+        writeLine(writer,1,"if(srcOff + count > srcLength){");
+        writeLine(writer,2,"fprintf(stderr,\"invalid source offset for copyToSlice: %\"PRIu64\" count: %\"PRIu64\" " +
+                "source length: %\"PRIu64\"\\n\", srcOff, count, srcLength);");
+        writeLine(writer,2,"exit(0xa11a7);");
+        writeLine(writer,1,"}");
+        writeLine(writer,1,"uint64_t sliceLength = sliceEnd - sliceStart;");
+        writeLine(writer,1,"int64_t growth = (int64_t)count - (int64_t)sliceLength;");
+        writeLine(writer,1,"bool fitsAtEnd = (int64_t)(mem->offset + mem->length) + growth <= (int64_t)mem->size;");
+        writeLine(writer,1,"if(!fitsAtEnd && growth > (int64_t)mem->offset){");
+        writeLine(writer,2,"fprintf(stderr,\"invalid array length: %\"PRIu64\" does not fit into available space\\n\", count);");
+        writeLine(writer,2,"exit(0xa11a7);");
+        writeLine(writer,1,"}");
+        writeLine(writer,1,"if(src >= mem->data && src < mem->data + mem->size * elementSize){" +
+                "//elements of mem are moved before they are copied");
+        writeLine(writer,2,"char* tmp = "+ALLOC_FUNCTION+"(count * elementSize);");
+        writeLine(writer,2,"memcpy(tmp, src + srcOff * elementSize, count * elementSize);");
+        writeLine(writer,2,"src = tmp;");
+        writeLine(writer,2,"srcOff = 0;");
+        writeLine(writer,1,"}");
+        writeLine(writer,1,"if(fitsAtEnd && (sliceStart >= mem->length - sliceEnd || growth > (int64_t)mem->offset)){");
+        writeLine(writer,2,"memmove(mem->data + (mem->offset + sliceStart + count) * elementSize, " +
+                "mem->data + (mem->offset + sliceEnd) * elementSize, (mem->length - sliceEnd) * elementSize);");
+        writeLine(writer,1,"}else{");
+        writeLine(writer,2,"memmove(mem->data + (mem->offset - growth) * elementSize, mem->data + mem->offset * elementSize, " +
+                "sliceStart * elementSize);");
+        writeLine(writer,2,"mem->offset -= growth;");
+        writeLine(writer,1,"}");
+        writeLine(writer,1,"memcpy(mem->data + (mem->offset + sliceStart) * elementSize, src + srcOff * elementSize, " +
+                "count * elementSize);");
+        writeLine(writer,1,"mem->length += growth;");
+        writeLine(writer,"}");
+        writeLine(writer,"static void "+MEMORY_CLEAR_SLICE+"("+CTYPE_MEMORY+"* mem, uint64_t sliceStart, uint64_t sliceEnd, " +
+                "size_t elementSize){");
+        writeLine(writer,1,"if(sliceEnd < sliceStart || sliceEnd > mem->length){");
+        writeLine(writer,2,"fprintf(stderr,\"invalid target slice for clear: %\"PRIu64\":%\"PRIu64\" " +
+                "length:%\"PRIu64\"\\n\", sliceStart, sliceEnd, mem->length);");
+        writeLine(writer,2,"exit(0xa11a7);");
+        writeLine(writer,1,"}");
+        writeLine(writer,1,"uint64_t sliceLength = sliceEnd - sliceStart;");
+        writeLine(writer,1,"if(sliceStart < mem->length - sliceEnd){");
+        writeLine(writer,2,"memmove(mem->data + (mem->offset + sliceLength) * elementSize, mem->data + mem->offset * elementSize, " +
+                "sliceStart * elementSize);");
+        writeLine(writer,2,"mem->offset += sliceLength;");
+        writeLine(writer,1,"}else{");
+        writeLine(writer,2,"memmove(mem->data + (mem->offset + sliceStart) * elementSize, " +
+                "mem->data + (mem->offset + sliceEnd) * elementSize, (mem->length - sliceEnd) * elementSize);");
+        writeLine(writer,1,"}");
+        writeLine(writer,1,"mem->length -= sliceLength;");
+        writeLine(writer,"}");
+        writer.newLine();
     }
 
     private static String toCIdentifier(String name) {
@@ -439,6 +756,7 @@ public class Compiler {
                         +CONCAT_PROC_NAMED_SIGNATURE+"{");
                 generator.setIndent(1);
                 compileCodeSection(generator,(Parser.CodeSection)dec.getValue());
+                generator.flushStack(0);
                 writeLine(writer,"}");
             }
         }
@@ -450,6 +768,7 @@ public class Compiler {
                         +CONCAT_PROC_NAMED_SIGNATURE+"{");
                 generator.setIndent(1);
                 compileCodeSection(generator,(Parser.CodeSection)dec.getValue());
+                generator.flushStack(0);
                 writeLine(writer,"}");
             }
         }
@@ -459,16 +778,21 @@ public class Compiler {
                     +CONCAT_PROC_NAMED_SIGNATURE+"{");
             generator.setIndent(1);
             compileCodeSection(generator, dec.getValue());
+            generator.flushStack(0);
             writeLine(writer,"}");
         }
         writer.newLine();
     }
 
-    //addLater optimize code (merge consecutive push and pop operations)
     private static void compileCodeSection(CodeGenerator generator, Parser.CodeSection section) throws IOException {
         /*amount of stack-values that should be dropped at the end of the current code-blocks*/
         ArrayDeque<Integer> dropOnEnd=new ArrayDeque<>();
-        for(Parser.Token next:section.tokens()){
+        /*switch-case statements containing the current token*/
+        ArrayDeque<OpenSwitch> openSwitches=new ArrayDeque<>();
+        ArrayList<Parser.Token> tokens=section.tokens();
+        for(int ip=0;ip<tokens.size();ip++){
+            Parser.Token next=tokens.get(ip);
+            switchLabels(generator,openSwitches,ip);
             generator.lineComment(next.toString());
             try {
                 switch (next.tokenType) {
@@ -482,7 +806,7 @@ public class Compiler {
                         assert next instanceof Parser.CallToken;
                         Parser.CallToken callToken = (Parser.CallToken) next;
                         if(callToken.called instanceof Value.Procedure called){
-                            generator.append(called.isPublic? PUBLIC_PROC_PREFIX : PRIVATE_PROC_PREFIX +idOf(called)+
+                            generator.flushStack(0).append(called.isPublic? PUBLIC_PROC_PREFIX : PRIVATE_PROC_PREFIX +idOf(called)+
                                     "("+STACK_ARG_NAME+", NULL)").endLine();
                         }else if(callToken.called instanceof Value.InternalProcedure iProc){
                             if(!iProc.canCompile()){
@@ -496,41 +820,28 @@ public class Compiler {
                         }
                     }
                     case CALL_PTR ->
-                        generator.changeStackPointer(-2)
+                        generator.flushStack(0).changeStackPointer(-2).flushStack(0)
                                 .getPrimitive(0, BaseType.StackValue.F_PTR).append("("+STACK_ARG_NAME+", ")
                                 .getPointer(-1,Type.ANY).append(")").endLine();
                     case STACK_DUP -> {
                         int offset=((Parser.StackModifierToken)next).args[2];
                         int count=((Parser.StackModifierToken)next).args[3];
-                        generator.append("memmove("+STACK_ARG_NAME+"->"+STACK_FIELD_POINTER+","+
-                                STACK_ARG_NAME+"->"+STACK_FIELD_POINTER+"-"+(offset+count)+"," +
-                                count+"*sizeof("+STACK_DATA_TYPE+"))").endLine();
-                        generator.changeStackPointer(count);
+                        generator.stackDup(offset,count);
                     }
                     case STACK_DROP -> {
                         int offset=((Parser.StackModifierToken)next).args[2];
                         int count=((Parser.StackModifierToken)next).args[3];
-                        if(offset>0){
-                            generator.append("memmove("+STACK_ARG_NAME+"->"+STACK_FIELD_POINTER+"-"+(offset+count)+","+
-                                    STACK_ARG_NAME+"->"+STACK_FIELD_POINTER+"-"+offset+"," +
-                                    offset+"*sizeof("+STACK_DATA_TYPE+"))").endLine();
-                        }
-                        generator.changeStackPointer(-count);
+                        generator.stackDrop(offset,count);
                     }
                     case STACK_ROT -> {
                         int count=((Parser.StackModifierToken)next).args[2];
                         int steps=((Parser.StackModifierToken)next).args[3];
-                        generator.append("memmove("+STACK_ARG_NAME+"->"+STACK_FIELD_POINTER+" ," +
-                                STACK_ARG_NAME+"->"+STACK_FIELD_POINTER+"-"+count+","+
-                                steps+"*sizeof("+STACK_DATA_TYPE+"))").endLine()
-                        .append("memmove("+STACK_ARG_NAME+"->"+STACK_FIELD_POINTER+"-"+count+"," +
-                                STACK_ARG_NAME+"->"+STACK_FIELD_POINTER+"-"+(count-steps)+
-                                ","+count+"*sizeof("+STACK_DATA_TYPE+"))").endLine();
+                        generator.stackRotate(count,steps);
                     }
                     case DEBUG_PRINT ->{
                         Type t=((Parser.TypedToken)next).target;
                         BaseType baseType=t.baseType();
-                        generator.append("fputs(\""+t.name+" (\", stdout)").endLine();
+                        generator.flushStack(0).append("fputs(\""+t.name+" (\", stdout)").endLine();
                         generator.changeStackPointer(-baseType.blockCount()).endLine();
                         if(baseType instanceof BaseType.StackValue){
                             printPrimitive(generator,0,(BaseType.StackValue)baseType,false);
@@ -543,7 +854,11 @@ public class Compiler {
                         generator.append("puts(\")\")").endLine();
                     }
                     case BLOCK_TOKEN -> {
-                        switch(((Parser.BlockToken)next).blockType){
+                        Parser.BlockTokenType blockType=((Parser.BlockToken)next).blockType;
+                        //the condition of the block is kept in a local variable
+                        generator.flushStack(blockType== Parser.BlockTokenType.IF||blockType== Parser.BlockTokenType._IF||
+                                blockType== Parser.BlockTokenType.DO||blockType== Parser.BlockTokenType.DO_WHILE?1:0);
+                        switch(blockType){
                             case IF,_IF ->
                                 generator.append("if(").popPrimitive(Type.BOOL).append("){").indent().newLine();
                             case IF_OPTIONAL,_IF_OPTIONAL ->{
@@ -637,28 +952,39 @@ public class Compiler {
                                     generator.changeStackPointer(-dropOnEnd.pop());
                                 }
                             }
-                            case DO_WHILE ->
-                                generator.dedent().append("}while(").popPrimitive(Type.BOOL).append(")").endLine();
+                            case DO_WHILE -> //the condition is evaluated inside the loop body to access local variables
+                                generator.append("if(!").popPrimitive(Type.BOOL).append(") break").endLine()
+                                        .dedent().append("}while(true)").endLine();
                             case END_CASE ->
-                                throw new UnsupportedOperationException("compiling BREAK  is currently not implemented");
+                                generator.append("break").endLine();
                             case FOR_ARRAY_PREPARE ->{
                                 assert next instanceof Parser.ForArrayStart;
                                 Type contentType=((Parser.ForArrayStart) next).arrayType.content();
-                                if(!(((Parser.ForArrayStart) next).arrayType.isArray()&&contentType.isPrimitive())){
+                                if(!(((Parser.ForArrayStart) next).arrayType.isArray())){
                                     throw new UnsupportedOperationException("compiling FOR_ARRAY_PREPARE for "+
                                             ((Parser.ForArrayStart) next).arrayType+" is currently not supported");
                                 }
+                                int blocks=contentType.blockCount();
                                 generator.assignPointer(1,contentType,false).
-                                        getPointer(2,contentType).append("+")
+                                        getPointer(2,contentType).append(blocks==1?"+":"+"+blocks+"*")
                                         .getPrimitive(1,Type.UINT()).endLine();
                             }
                             case FOR_ARRAY_LOOP -> {
                                 assert next instanceof Parser.ForArrayStart;
                                 Type contentType = ((Parser.ForArrayStart) next).arrayType.content();
-                                generator.append("for(; ").getPointer(2,contentType).append(" < ").getPointer(1,contentType)
-                                        .append("; ").getPointer(2,contentType).append("++){").newLine().indent()
-                                        .assignPrimitive(0,contentType).append("*").getPointer(2,contentType).endLine()
-                                        .changeStackPointer(1).endLine();
+                                if(contentType.baseType() instanceof BaseType.StackValue){
+                                    generator.append("for(; ").getPointer(2,contentType).append(" < ").getPointer(1,contentType)
+                                            .append("; ").getPointer(2,contentType).append("++){").newLine().indent()
+                                            .assignPrimitive(0,contentType).append("*").getPointer(2,contentType).endLine()
+                                            .changeStackPointer(1).endLine();
+                                }else{
+                                    int blocks=contentType.blockCount();
+                                    generator.append("for(; ").getPointer(2,contentType).append(" < ").getPointer(1,contentType)
+                                            .append("; ").getPointer(2,contentType).append(" += "+blocks+"){").newLine().indent()
+                                            .append("memcpy(").getRaw(0).append(", ").getPointer(2,contentType)
+                                            .append(", "+blocks+"*sizeof("+STACK_DATA_TYPE+"))").endLine()
+                                            .changeStackPointer(blocks);
+                                }
                             }
                             case FOR_ARRAY_END ->
                                 generator.dedent().append("}").newLine().changeStackPointer(-2).endLine();
@@ -686,6 +1012,8 @@ public class Compiler {
                                 case DECLARE ->
                                         generator.append(((BaseType.StackValue) baseType).cType+" "+idName+" = ")
                                                 .popPrimitive(asVar.id.type).endLine();
+                                case WRITE ->
+                                        generator.append(idName+" = ").popPrimitive(asVar.id.type).endLine();
                                 case READ ->
                                         generator.pushPrimitive((BaseType.StackValue)baseType).append(idName).endLine();
                                 case REFERENCE_TO ->
@@ -698,6 +1026,10 @@ public class Compiler {
                                                 .append(STACK_DATA_TYPE+" "+idName+"["+baseType.blockCount()+"]").endLine()
                                                 .append("memcpy("+idName+", ").getRaw(0)
                                                 .append(", "+baseType.blockCount()+"*sizeof("+STACK_DATA_TYPE+"))").endLine();
+                                case WRITE ->
+                                        generator.changeStackPointer(-baseType.blockCount()).endLine()
+                                                .append("memcpy("+idName+", ").getRaw(0)
+                                                .append(", "+baseType.blockCount()+"*sizeof("+STACK_DATA_TYPE+"))").endLine();
                                 case READ ->
                                         generator.append("memcpy(").getRaw(0)
                                                 .append(", "+idName+", "+baseType.blockCount()+"*sizeof("+STACK_DATA_TYPE+"))").endLine()
@@ -734,9 +1066,9 @@ public class Compiler {
                         }
                     }
                     case RETURN ->
-                            generator.startLine().append("return").endLine();
+                            generator.flushStack(0).startLine().append("return").endLine();
                     case EXIT ->
-                            generator.startLine().append("exit((int)")
+                            generator.flushStack(0).startLine().append("exit((int)")
                                     .getPrimitive(1,Type.INT()).append(")").endLine();
                     case NEW -> {
                         assert next instanceof Parser.TypedToken;
@@ -744,8 +1076,12 @@ public class Compiler {
                         BaseType base=type.baseType();
                         if(type instanceof Type.Tuple||type instanceof Type.Struct){
                             if(base == BaseType.StackValue.PTR){
-                                throw new UnsupportedOperationException(type+" is currently not supported in NEW");
+                                compileNewTuple(generator,(Type.TupleLike)type);
                             }//else do nothing
+                        }else if(type.isArray()){
+                            compileNewArray(generator,type.content());
+                        }else if(type.isMemory()){
+                            compileNewMemory(generator,type.content());
                         }else{
                             throw new UnsupportedOperationException(type+" is currently not supported in NEW");
                         }
@@ -754,29 +1090,78 @@ public class Compiler {
                         assert next instanceof Parser.TupleElementAccess;
                         Type.TupleLike type=((Parser.TupleElementAccess) next).tupleType;
                         int index = ((Parser.TupleElementAccess) next).index;
-                        if(type.baseType() == BaseType.StackValue.PTR){
-                            throw new UnsupportedOperationException("tuple access is currently not supported for tuples of type "+type);
-                        }
                         Type[] elements=type.getElements();
-                        int pre=0,count=elements[index].blockCount(),post=0;
-                        for(int i = 0; i< index; i++){
-                            pre+=elements[i].blockCount();
-                        }
-                        for(int i = index+1; i< elements.length; i++){
-                            post+=elements[i].blockCount();
-                        }
-                        generator.changeStackPointer(-(pre+post)).endLine();
-                        if(index>0){
-                            generator.append("memmove(").getRaw(count).append(", ").getRaw(count-pre)
-                                    .append(", "+count+"*sizeof("+STACK_DATA_TYPE+"))").endLine();
+                        int pre=blockOffset(elements,index),count=elements[index].blockCount();
+                        if(type.baseType() == BaseType.StackValue.PTR){//mutable tuples are stored on the heap
+                            if(elements[index].baseType() instanceof BaseType.StackValue primitive){
+                                generator.assignPrimitive(1,primitive).append("(").getPrimitive(1,BaseType.StackValue.PTR)
+                                        .append("["+pre+"])."+typeWrapperName(primitive)).endLine();
+                            }else{
+                                generator.append("memcpy(").getRaw(1).append(", ").getPrimitive(1,BaseType.StackValue.PTR)
+                                        .append(" + "+pre+", "+count+"*sizeof("+STACK_DATA_TYPE+"))").endLine()
+                                        .changeStackPointer(count-1);
+                            }
+                        }else{
+                            int post=blockOffset(elements,elements.length)-(pre+count);
+                            generator.changeStackPointer(-(pre+post)).endLine();
+                            if(index>0){
+                                generator.append("memmove(").getRaw(count).append(", ").getRaw(count-pre)
+                                        .append(", "+count+"*sizeof("+STACK_DATA_TYPE+"))").endLine();
+                            }
                         }
                     }
                     case CURRIED_LAMBDA -> throw new UnsupportedOperationException("compiling CURRIED_LAMBDA  is currently not implemented");
-                    case NEW_ARRAY -> throw new UnsupportedOperationException("compiling NEW_ARRAY  is currently not implemented");
+                    case NEW_ARRAY -> {
+                        assert next instanceof Parser.ArrayCreatorToken;
+                        compileArrayCreator(generator,(Parser.ArrayCreatorToken) next);
+                    }
                     case ASSERT -> throw new UnsupportedOperationException("compiling ASSERT  is currently not implemented");
-                    case SWITCH -> throw new UnsupportedOperationException("compiling SWITCH  is currently not implemented");
-                    case TUPLE_REFERENCE_TO -> throw new UnsupportedOperationException("compiling TUPLE_REFERENCE_TO  is currently not implemented");
-                    case TUPLE_SET_INDEX -> throw new UnsupportedOperationException("compiling TUPLE_SET_INDEX  is currently not implemented");
+                    case SWITCH -> {
+                        Parser.SwitchCaseBlock block=((Parser.SwitchToken)next).block;
+                        if(block.intTable==null){
+                            throw new UnsupportedOperationException("compiling SWITCH is currently only supported for " +
+                                    "integers and enums, got: "+block.switchType);
+                        }
+                        generator.flushStack(1).append("switch(").popPrimitive(block.switchType).append("){").indent().newLine();
+                        openSwitches.push(new OpenSwitch(ip,block));
+                    }
+                    case TUPLE_REFERENCE_TO -> {
+                        assert next instanceof Parser.TupleElementAccess;
+                        Type.TupleLike type=((Parser.TupleElementAccess) next).tupleType;
+                        int index = ((Parser.TupleElementAccess) next).index;
+                        if(type.baseType() != BaseType.StackValue.PTR){
+                            throw new UnsupportedOperationException("references to elements of "+type+" are not supported");
+                        }
+                        Type element=type.getElements()[index];
+                        int pre=blockOffset(type.getElements(),index);
+                        if(element.baseType() instanceof BaseType.StackValue primitive){
+                            generator.assignPointer(1,element,false).append("&(").getPrimitive(1,BaseType.StackValue.PTR)
+                                    .append("["+pre+"])."+typeWrapperName(primitive)).endLine();
+                        }else{
+                            generator.assignPointer(1,element,false).getPrimitive(1,BaseType.StackValue.PTR)
+                                    .append(" + "+pre).endLine();
+                        }
+                    }
+                    case TUPLE_SET_INDEX -> {
+                        assert next instanceof Parser.TupleElementAccess;
+                        Type.TupleLike type=((Parser.TupleElementAccess) next).tupleType;
+                        int index = ((Parser.TupleElementAccess) next).index;
+                        if(type.baseType() != BaseType.StackValue.PTR){
+                            throw new UnsupportedOperationException("cannot modify elements of "+type);
+                        }
+                        Type element=type.getElements()[index];
+                        int pre=blockOffset(type.getElements(),index);
+                        if(element.baseType() instanceof BaseType.StackValue primitive){
+                            generator.append("(").getPrimitive(1,BaseType.StackValue.PTR)
+                                    .append("["+pre+"])."+typeWrapperName(primitive)+" = ").getPrimitive(2,primitive).endLine()
+                                    .changeStackPointer(-2);
+                        }else{
+                            generator.append("memcpy(").getPrimitive(1,BaseType.StackValue.PTR).append(" + "+pre+", ")
+                                    .getRaw(element.blockCount()+1)
+                                    .append(", "+element.blockCount()+"*sizeof("+STACK_DATA_TYPE+"))").endLine()
+                                    .changeStackPointer(-(element.blockCount()+1));
+                        }
+                    }
                     case TRAIT_FIELD_ACCESS -> throw new UnsupportedOperationException("compiling TRAIT_FIELD_ACCESS  is currently not implemented");
                     case DECLARE_LAMBDA, IDENTIFIER, REFERENCE_TO, OPTIONAL_OF, EMPTY_OPTIONAL, UNREACHABLE, OVERLOADED_PROC_PTR,
                             MARK_MUTABLE, MARK_MAYBE_MUTABLE, MARK_IMMUTABLE, MARK_INHERIT_MUTABILITY, ARRAY_OF, MEMORY_OF, STACK_SIZE ->
@@ -787,6 +1172,138 @@ public class Compiler {
                 throw new RuntimeException("while executing "+next.pos,e);
             }
         }
+        switchLabels(generator,openSwitches,tokens.size());
+    }
+    /**@return the number of blocks before the element at index*/
+    private static int blockOffset(Type[] elements,int index){
+        int offset=0;
+        for(int i=0;i<index;i++){
+            offset+=elements[i].blockCount();
+        }
+        return offset;
+    }
+    /**moves the elements of a mutable tuple from the stack to the heap*/
+    private static void compileNewTuple(CodeGenerator generator, Type.TupleLike type) throws IOException {
+        int blocks=blockOffset(type.getElements(),type.elementCount());
+        generator.pushPrimitive(BaseType.StackValue.PTR)
+                .append(ALLOC_FUNCTION+"("+blocks+"*sizeof("+STACK_DATA_TYPE+"))").endLine();
+        if(blocks>0){
+            generator.append("memcpy(").getPrimitive(1,BaseType.StackValue.PTR).append(", ")
+                    .getRaw(blocks+1).append(", "+blocks+"*sizeof("+STACK_DATA_TYPE+"))").endLine()
+                    .stackDrop(1,blocks);
+        }
+    }
+    /**allocates the memory for an array with the given content type and the length at lengthOffset,
+     * primitive elements are stored in a C-array of the primitive type, other values are stored as blocks of stack values*/
+    private static void allocateArray(CodeGenerator generator, Type content, int lengthOffset) throws IOException {
+        generator.pushPointer(content).append(ALLOC_FUNCTION+"(").getPrimitive(lengthOffset+1,Type.UINT())
+                .append(" * "+elementSize(content)+")").endLine();
+    }
+    /**C-expression for the size of an element of an array or memory with the given content type*/
+    static String elementSize(Type content){
+        BaseType contentBase=content.baseType();
+        if(contentBase instanceof BaseType.StackValue primitive){
+            if(contentBase== BaseType.Primitive.OPTIONAL_I32||contentBase== BaseType.Primitive.OPTIONAL_U32){
+                throw new UnsupportedOperationException("arrays of "+content+" are currently not supported");
+            }
+            return "sizeof("+primitive.cType+")";
+        }
+        return "("+contentBase.blockCount()+"*sizeof("+STACK_DATA_TYPE+"))";
+    }
+    /**appends the header of the memory at offset to the current line*/
+    static CodeGenerator getMemory(CodeGenerator generator, int offset) throws IOException {
+        return generator.append("((" + CTYPE_MEMORY + "*)").getPrimitive(offset, BaseType.StackValue.PTR).append(")");
+    }
+    /**stores the value whose lowest block is at valueOffset in the element of the memory at memOffset
+     * that is added by the given memory function*/
+    static CodeGenerator compileMemoryInsert(CodeGenerator generator, Type content, int memOffset, int valueOffset,
+                                             String function) throws IOException {
+        if(content.baseType() instanceof BaseType.StackValue primitive){
+            getMemory(generator.append("*("+primitive.cType+"*)"+function+"("),memOffset)
+                    .append(", "+elementSize(content)+") = ").getPrimitive(valueOffset,primitive);
+        }else{
+            getMemory(generator.append("memcpy("+function+"("),memOffset).append(", "+elementSize(content)+"), ")
+                    .getRaw(valueOffset).append(", "+elementSize(content)+")");
+        }
+        return generator.endLine();
+    }
+    /**fills count elements starting at the pointer on top of the stack with the value whose lowest block is at valueOffset*/
+    static CodeGenerator compileFill(CodeGenerator generator, Type content, int countOffset, int valueOffset) throws IOException {
+        int blocks=content.blockCount();
+        generator.append("for(uint64_t i = 0; i < ").getPrimitive(countOffset,Type.UINT()).append("; i++) ");
+        if(content.baseType() instanceof BaseType.StackValue primitive){
+            generator.getPointer(1,content).append("[i] = ").getPrimitive(valueOffset,primitive);
+        }else{
+            generator.append("memcpy(").getPointer(1,content).append(" + "+blocks+"*i, ").getRaw(valueOffset)
+                    .append(", "+blocks+"*sizeof("+STACK_DATA_TYPE+"))");
+        }
+        return generator.endLine();
+    }
+    /**compiles new for memories: ( initCap => memory )*/
+    private static void compileNewMemory(CodeGenerator generator, Type content) throws IOException {
+        generator.assignPrimitive(1, BaseType.StackValue.PTR).append("("+STACK_DATA_TYPE+"*)"+MEMORY_NEW+"(")
+                .getPrimitive(1,Type.UINT()).append(", "+elementSize(content)+")").endLine();
+    }
+    /**compiles new for arrays: ( fill len => array )*/
+    private static void compileNewArray(CodeGenerator generator, Type content) throws IOException {
+        int blocks=content.blockCount();
+        allocateArray(generator,content,1);
+        compileFill(generator,content,2,blocks+2);
+        //( fill len data => data len )
+        generator.stackRotate(2,1).stackDrop(2,blocks);
+    }
+    /**compiles array literals that are evaluated at runtime: { e1 e2 ... eN }*/
+    private static void compileArrayCreator(CodeGenerator generator, Parser.ArrayCreatorToken creator) throws IOException {
+        compileCodeSection(generator,creator);
+        Type content=creator.contentType;
+        Type[] elements=creator.elementTypes;
+        int offset=1;
+        for(int i=elements.length-1;i>=0;i--){
+            if(!Arrays.equals(elements[i].baseType().blocks(),content.baseType().blocks())){
+                compileCast(generator,elements[i],content,offset);
+            }
+            offset+=elements[i].blockCount();
+        }
+        int blocks=content.blockCount();
+        generator.pushPrimitive(Type.UINT()).appendInt(elements.length,64,false).endLine();
+        allocateArray(generator,content,1);
+        if(content.baseType() instanceof BaseType.StackValue primitive){
+            for(int i=0;i<elements.length;i++){
+                generator.getPointer(1,content).append("["+i+"] = ").getPrimitive(elements.length+2-i,primitive).endLine();
+            }
+        }else if(elements.length>0){
+            generator.append("memcpy(").getPointer(1,content).append(", ").getRaw(elements.length*blocks+2)
+                    .append(", "+elements.length*blocks+"*sizeof("+STACK_DATA_TYPE+"))").endLine();
+        }
+        //( e1 ... eN len data => data len )
+        generator.stackRotate(2,1).stackDrop(2,elements.length*blocks);
+    }
+
+    private record OpenSwitch(int start,Parser.SwitchCaseBlock block){}
+    /**closes the switch-case statements ending at ip and writes the case labels of sections starting at ip*/
+    private static void switchLabels(CodeGenerator generator, ArrayDeque<OpenSwitch> openSwitches, int ip) throws IOException {
+        while(openSwitches.size()>0&&ip==openSwitches.peek().start+openSwitches.peek().block.endJump){
+            generator.flushStack(0);
+            if(openSwitches.pop().block.defaultStart!=null){//end of default block
+                generator.append("break").endLine();
+            }
+            generator.dedent().append("}").newLine();
+        }
+        if(openSwitches.isEmpty()){
+            return;
+        }
+        OpenSwitch open=openSwitches.peek();
+        IntSwitchTable table=open.block.intTable;
+        BaseType.Primitive.Int asInt=(BaseType.Primitive.Int)open.block.switchType.baseType();
+        for(int i=0;i<table.keys.length;i++){
+            if(open.start+table.targets[i]==ip){
+                generator.flushStack(0).dedent().append("case ").appendInt(table.keys[i],asInt.bitCount,!asInt.unsigned)
+                        .append(":;").indent().newLine();//empty statement, labels cannot precede declarations before C23
+            }
+        }
+        if(open.block.defaultStart!=null&&open.start+open.block.defaultJump==ip){
+            generator.flushStack(0).dedent().append("default:;").indent().newLine();
+        }
     }
 
     private static void pushValue(Parser.CodeSection section, CodeGenerator generator, Value value) throws IOException, TypeError {
@@ -836,12 +1353,12 @@ public class Compiler {
             generator.pushPrimitive(Type.UINT())
                     .appendInt(value.length(),64,false).endLine();
         }else if(value.type instanceof Type.Tuple||value.type instanceof Type.Struct){
-            if(baseType == BaseType.StackValue.PTR){
-                throw new UnsupportedOperationException("tuples of type " + value.type + " are currently not supported");
-            }
             for(Value v:value.getElements()){
                 pushValue(section, generator, v);
             }
+            if(baseType == BaseType.StackValue.PTR){
+                compileNewTuple(generator,(Type.TupleLike)value.type);
+            }
         }else if(value.type.isOptional()){
             if(!(baseType instanceof BaseType.Composite)){
                 throw new UnsupportedOperationException("optionals of type " + value.type + " are currently not supported");
@@ -918,6 +1435,20 @@ public class Compiler {
     private static void compileCast(CodeGenerator generator, Type src, Type target, int offset) throws IOException {
         if(src instanceof Type.Procedure&&target instanceof Type.Procedure){
             assert src.canCastTo(target)!= Type.CastType.NONE;//casting between procedures only changes type-info
+        }else if(src.isMemory()&&target.isArray()){
+            if(offset>1){
+                generator.stackRotate(offset,1);
+            }
+            //( memory => data len )
+            Type content=src.content();
+            generator.pushPrimitive(Type.UINT()).append("(");
+            getMemory(generator,2).append("->length)").endLine();
+            generator.assignPointer(2,content,false).append("("+content.baseType().pointerTo().cType+")(");
+            getMemory(generator,2).append("->data + ");
+            getMemory(generator,2).append("->offset * "+elementSize(content)+")").endLine();
+            if(offset>1){
+                generator.stackRotate(offset+1,offset-1);
+            }
         }else{
             BaseType b1=src.baseType();
             BaseType b2=target.baseType();
@@ -0,0 +1,74 @@
+package bsoelch.concat;
+
+/**pool for the variable frames of procedure calls,
+ * each interpreter has its own pool since an interpreter is only used by one thread*/
+final class FramePool {
+    /**frames with more slots are not pooled*/
+    private static final int MAX_FRAME_SIZE = 32;
+    /**maximum number of pooled frames of each size*/
+    private static final int MAX_FRAMES = 16;
+
+    private final Value[][][] free=new Value[MAX_FRAME_SIZE+1][MAX_FRAMES][];
+    private final int[] freeCount=new int[MAX_FRAME_SIZE+1];
+    /**frames of the bytecode interpreter*/
+    private final VariableSlots[][] freeSlots=new VariableSlots[MAX_FRAME_SIZE+1][MAX_FRAMES];
+    private final int[] freeSlotsCount=new int[MAX_FRAME_SIZE+1];
+
+    Value[] allocate(int size){
+        InterpreterMetrics metrics=InterpreterMetrics.current;
+        if(size<=MAX_FRAME_SIZE&&freeCount[size]>0){
+            Value[][] frames=free[size];
+            Value[] frame=frames[--freeCount[size]];
+            frames[freeCount[size]]=null;
+            if(metrics!=null){
+                metrics.frame(true);
+            }
+            return frame;
+        }
+        if(metrics!=null){
+            metrics.frame(false);
+        }
+        return new Value[size];
+    }
+    /**returns the frame of a finished call of a procedure with the given context to the pool,
+     * frames that may be accessed through references to local variables are not reused*/
+    void release(Value[] frame,Parser.VariableContext context){
+        if(!(context instanceof Parser.ProcedureContext procedure)||procedure.variableReferences>0){
+            return;
+        }
+        int size=frame.length;
+        if(size<=MAX_FRAME_SIZE&&freeCount[size]<MAX_FRAMES){
+            for(int i=0;i<size;i++){
+                frame[i]=null;
+            }
+            free[size][freeCount[size]++]=frame;
+        }
+    }
+
+    VariableSlots allocateSlots(int size){
+        InterpreterMetrics metrics=InterpreterMetrics.current;
+        if(size<=MAX_FRAME_SIZE&&freeSlotsCount[size]>0){
+            VariableSlots[] frames=freeSlots[size];
+            VariableSlots frame=frames[--freeSlotsCount[size]];
+            frames[freeSlotsCount[size]]=null;
+            if(metrics!=null){
+                metrics.frame(true);
+            }
+            return frame;
+        }
+        if(metrics!=null){
+            metrics.frame(false);
+        }
+        return new VariableSlots(size);
+    }
+    void releaseSlots(VariableSlots frame,Parser.VariableContext context){
+        if(!(context instanceof Parser.ProcedureContext procedure)||procedure.variableReferences>0){
+            return;
+        }
+        int size=frame.size();
+        if(size<=MAX_FRAME_SIZE&&freeSlotsCount[size]<MAX_FRAMES){
+            frame.clear();
+            freeSlots[size][freeSlotsCount[size]++]=frame;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package bsoelch.concat;
 
+import java.io.BufferedOutputStream;
 import java.io.InputStream;
 import java.io.PrintStream;
 
@@ -8,6 +9,8 @@ import java.io.PrintStream;
  */
 @SuppressWarnings("ClassCanBeRecord")
 final class IOContext {
+    static final int BUFFER_SIZE = 1<<16;
+
     final InputStream stdIn;
     final PrintStream stdOut;
     final PrintStream stdErr;
@@ -17,4 +20,27 @@ final class IOContext {
         this.stdOut = stdOut;
         this.stdErr = stdErr;
     }
+
+    /**true if the output of the program is shown to a user,
+     * can be overwritten with the system property concat.interactive*/
+    static boolean isInteractive(){
+        String mode=System.getProperty("concat.interactive");
+        if(mode!=null){
+            return Boolean.parseBoolean(mode);
+        }
+        return System.console()!=null;
+    }
+
+    /**context that buffers the output streams of this context, the output streams are flushed
+     * on each line in interactive mode and only when the buffer is full or on {@link #flush()} otherwise,
+     * the input stream is shared without an additional buffer since bytes read ahead would be lost after the run*/
+    IOContext buffered(boolean interactive){
+        return new IOContext(stdIn,
+                new PrintStream(new BufferedOutputStream(stdOut,BUFFER_SIZE),interactive),
+                new PrintStream(new BufferedOutputStream(stdErr,BUFFER_SIZE),interactive));
+    }
+    void flush(){
+        stdOut.flush();
+        stdErr.flush();
+    }
 }
@@ -0,0 +1,98 @@
+package bsoelch.concat;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+
+/**jump table for switch-case statements over integers, bytes, codepoints or enum entries,
+ * dense key ranges are looked up by offset, sparse keys by binary search*/
+final class IntSwitchTable {
+    /**maximum average number of table entries per case value in a dense table*/
+    private static final int MAX_DENSE_FACTOR = 4;
+    /**class of the values that are stored unboxed on the operand stack of the bytecode interpreter*/
+    static final Class<?> INT_VALUE=Value.ofInt(0,false).getClass();
+
+    /**class of the case values, values of other classes never match a case*/
+    final Class<?> keyClass;
+    /**sorted case values*/
+    final long[] keys;
+    /**targets of the case values in the same order as keys*/
+    final int[] targets;
+    final int defaultTarget;
+    /**targets for the values min to min+dense.length-1, null for sparse tables*/
+    private final int[] dense;
+    private final long min;
+
+    private IntSwitchTable(Class<?> keyClass, long[] keys, int[] targets, int defaultTarget) {
+        this.keyClass = keyClass;
+        this.keys = keys;
+        this.targets = targets;
+        this.defaultTarget = defaultTarget;
+        min=keys[0];
+        long range=keys[keys.length-1]-min;//negative on overflow
+        if(range>=0&&range<(long)MAX_DENSE_FACTOR*keys.length+8){
+            dense=new int[(int)range+1];
+            Arrays.fill(dense,defaultTarget);
+            for(int i=0;i<keys.length;i++){
+                dense[(int)(keys[i]-min)]=targets[i];
+            }
+        }else{
+            dense=null;
+        }
+    }
+
+    /**@return a jump table for the given case values or null if not all case values are integral values of the same class*/
+    static IntSwitchTable of(Map<Value,Integer> jumps,int defaultTarget){
+        if(jumps.isEmpty()){
+            return null;
+        }
+        Class<?> keyClass=null;
+        long[][] entries=new long[jumps.size()][];
+        int i=0;
+        for(Map.Entry<Value,Integer> e:jumps.entrySet()){
+            Value v=e.getKey();
+            if(!(v instanceof Value.EnumEntry||v.type instanceof Type.IntType)){
+                return null;
+            }else if(keyClass==null){
+                keyClass=v.getClass();
+            }else if(keyClass!=v.getClass()){
+                return null;
+            }
+            try {
+                entries[i++]=new long[]{v.asLong(),e.getValue()};
+            } catch (TypeError err) {
+                return null;
+            }
+        }
+        Arrays.sort(entries,Comparator.comparingLong(e->e[0]));
+        long[] keys=new long[entries.length];
+        int[] targets=new int[entries.length];
+        for(i=0;i<entries.length;i++){
+            keys[i]=entries[i][0];
+            targets[i]=(int)entries[i][1];
+        }
+        return new IntSwitchTable(keyClass,keys,targets,defaultTarget);
+    }
+
+    /**@return a copy of this table with all targets replaced by map(target)*/
+    IntSwitchTable withTargets(IntUnaryOperator map){
+        int[] newTargets=new int[targets.length];
+        for(int i=0;i<targets.length;i++){
+            newTargets[i]=map.applyAsInt(targets[i]);
+        }
+        return new IntSwitchTable(keyClass,keys,newTargets,map.applyAsInt(defaultTarget));
+    }
+
+    int target(long key){
+        if(dense!=null){
+            long off=key-min;
+            return off>=0&&off<dense.length?dense[(int)off]:defaultTarget;
+        }
+        int i=Arrays.binarySearch(keys,key);
+        return i>=0?targets[i]:defaultTarget;
+    }
+    int target(Value value) throws TypeError {
+        return value.getClass()==keyClass?target(value.asLong()):defaultTarget;
+    }
+}
@@ -15,12 +15,52 @@ public class Interpreter {
     enum ExitType{
         NORMAL,FORCED,ERROR
     }
+    /**execution engines supported by the interpreter*/
+    enum Engine{
+        /**directly executes the token list created by the type-checker*/
+        TOKENS,
+        /**lowers the tokens to a flat opcode stream before executing them (see {@link ByteCode})*/
+        BYTECODE
+    }
+    static Engine defaultEngine=Engine.TOKENS;
+
+    /**path of the profiler output, profiling is disabled if this is null*/
+    static String profilePath=null;
+    /**path of the metrics output, metrics are disabled if this is null*/
+    static String metricsPath=null;
+
+    final Engine engine;
+    private final FramePool framePool=new FramePool();
+    /**profiler for the executed procedures or null if profiling is disabled*/
+    Profiler profiler;
+    /**runtime counters or null if metrics are disabled*/
+    InterpreterMetrics metrics;
+    public Interpreter(){
+        this(defaultEngine);
+    }
+    Interpreter(Engine engine){
+        this.engine = engine;
+    }
 
     public RandomAccessStack<Value> run(Parser.Program program, String[] arguments, IOContext context){
+        InterpreterMetrics prevMetrics=InterpreterMetrics.current;
+        InterpreterMetrics.current=metrics;
+        try{
+            return runProgram(program,arguments,context);
+        }finally {
+            InterpreterMetrics.current=prevMetrics;
+        }
+    }
+    private RandomAccessStack<Value> runProgram(Parser.Program program, String[] arguments, IOContext context){
         RandomAccessStack<Value> stack=new RandomAccessStack<>(16);
+        ByteCodeInterpreter byteCode=engine==Engine.BYTECODE?new ByteCodeInterpreter(context,profiler,metrics):null;
         Parser.Declareable main=program.rootContext().getElement("main",true);
         if(main==null){
-            recursiveRun(stack,program,null,null,null,context);
+            if(byteCode!=null){
+                byteCode.run(stack,program,null);
+            }else{
+                recursiveRun(stack,program,null,null,null,context);
+            }
         }else{
             if(program.tokens().size()>0){
                 context.stdErr.println("programs with main procedure cannot contain code at top level "+
@@ -46,22 +86,45 @@ public class Interpreter {
                         stack.push(Value.createArray(Type.arrayOf(Type.RAW_STRING()),args.toArray(Value[]::new)));
                     }
                 }
-                recursiveRun(stack,(Value.Procedure)main,new ArrayList<>(),null,null,context);
+                if(profiler!=null){
+                    profiler.enter((Value.Procedure)main);
+                }
+                if(byteCode!=null){
+                    byteCode.run(stack,(Value.Procedure)main,new Value[0]);
+                }else{
+                    recursiveRun(stack,(Value.Procedure)main,new Value[0],null,null,context);
+                }
+                if(profiler!=null){
+                    profiler.exit();
+                }
             }
         }
         return stack;
     }
 
-    private ExitType recursiveRun(RandomAccessStack<Value> stack, Parser.CodeSection program, ArrayList<Value[]> globalVariables,
-                                  ArrayList<Value[]> variables, Value[] curried, IOContext ioContext){
-        if(variables==null){
-            variables=new ArrayList<>();
-            variables.add(new Value[program.context().varCount()]);
+    /**@param variables frame containing the variables of the enclosing procedure,
+     *                  if variables is null a new frame is created for the given code section*/
+    private ExitType recursiveRun(RandomAccessStack<Value> stack, Parser.CodeSection program, Value[] globalVariables,
+                                  Value[] variables, Value[] curried, IOContext ioContext){
+        if(variables!=null){
+            return runSection(stack,program,globalVariables,variables,curried,ioContext);
+        }
+        Value[] frame=framePool.allocate(program.context().varCount());
+        try{
+            return runSection(stack,program,globalVariables,frame,curried,ioContext);
+        }finally {
+            framePool.release(frame,program.context());
         }
+    }
+    private ExitType runSection(RandomAccessStack<Value> stack, Parser.CodeSection program, Value[] globalVariables,
+                                Value[] variables, Value[] curried, IOContext ioContext){
         int ip=0;
         ArrayList<Parser.Token> tokens=program.tokens();
         while(ip<tokens.size()){
             Parser.Token next=tokens.get(ip);
+            if(metrics!=null){
+                metrics.token(next.tokenType,stack.size());
+            }
             boolean incIp=true;
             try {
                 switch (next.tokenType) {
@@ -84,7 +147,7 @@ public class Interpreter {
                             if(id instanceof Parser.CurriedVariable){
                                 curried2[i]=curried[id.id];
                             }else{
-                                curried2[i]=variables.get(id.level)[id.id];
+                                curried2[i]=variables[id.id];
                             }
                         }
                         stack.push(proc.withCurried(curried2));
@@ -176,11 +239,10 @@ public class Interpreter {
                                 Value[] values;
                                 switch (asVar.variableType){
                                     case GLOBAL ->
-                                            values=(globalVariables==null?variables:globalVariables)
-                                                    .get(asVar.id.level);
+                                            values=globalVariables==null?variables:globalVariables;
                                     case LOCAL -> {
                                         if (globalVariables != null) {
-                                            values=variables.get(asVar.id.level);
+                                            values=variables;
                                         }else{
                                             throw new RuntimeException("access to local variable outside of procedure");
                                         }
@@ -190,23 +252,21 @@ public class Interpreter {
                                     default -> throw new RuntimeException("unexpected variableType:"+asVar.variableType);
                                 }
                                 if(asVar.accessType== Parser.AccessType.REFERENCE_TO){
-                                    stack.push(new Value.ReferenceValue(asVar.id.type,()->values[asVar.id.id],
-                                            v->values[asVar.id.id]=v));
+                                    stack.push(new Value.VariableReference(asVar.id.type,values,asVar.id.id));
                                 }else{
                                     stack.push(values[asVar.id.id]);
                                 }
                             }
-                            case DECLARE -> {
+                            case DECLARE, WRITE -> {
                                 Type type= asVar.id.type;
                                 assert type != null;
                                 Value initValue=stack.pop();
                                 switch (asVar.variableType){
                                     case GLOBAL ->
-                                            (globalVariables==null?variables:globalVariables).get(asVar.id.level)
-                                                    [asVar.id.id] = initValue;
+                                            (globalVariables==null?variables:globalVariables)[asVar.id.id] = initValue;
                                     case LOCAL ->{
                                         if (globalVariables != null) {
-                                            variables.get(asVar.id.level)[asVar.id.id]= initValue;
+                                            variables[asVar.id.id]= initValue;
                                         }else{
                                             throw new RuntimeException("access to local variable outside of procedure");
                                         }
@@ -235,22 +295,13 @@ public class Interpreter {
                             MARK_MUTABLE,MARK_MAYBE_MUTABLE,MARK_IMMUTABLE,MARK_INHERIT_MUTABILITY,ARRAY_OF,MEMORY_OF,STACK_SIZE ->
                             throw new RuntimeException("Tokens of type " + next.tokenType +
                                     " should be eliminated at compile time");
-                    case CONTEXT_OPEN -> {
-                        assert next instanceof Parser.ContextOpen;
-                        variables.add(new Value[((Parser.ContextOpen) next).context.varCount()]);
-                    }
-                    case CONTEXT_CLOSE -> {
-                        if(variables.size()<=1){
-                            throw new RuntimeException("unexpected CONTEXT_CLOSE operation");
-                        }
-                        variables.remove(variables.size()-1);
-                    }
+                    case CONTEXT_OPEN, CONTEXT_CLOSE -> {}//variables are stored in the frame of the enclosing procedure
                     case TRAIT_FIELD_ACCESS -> {
                         assert next instanceof Parser.TraitFieldAccess;
                         Value val = stack.peek();
                         Parser.Callable called;
                         if(((Parser.TraitFieldAccess) next).isDirect) {
-                            called=val.type.getTraitField(((Parser.TraitFieldAccess) next).id);
+                            called=((Parser.TraitFieldAccess) next).cache.get(val.type);
                         }else{
                             if (!(val instanceof Value.TraitValue tv)) {
                                 throw new RuntimeException("trait field access on non-trait value");
@@ -258,7 +309,7 @@ public class Interpreter {
                             stack.pop();//call trait on unwrapped value
                             stack.push(tv.wrapped);
 
-                            called=tv.wrapped.type.getTraitField(((Parser.TraitFieldAccess) next).id);
+                            called=((Parser.TraitFieldAccess) next).cache.get(tv.wrapped.type);
                         }
                         ExitType e=call(called, next, stack, globalVariables, variables, ioContext);
                         if(e!=ExitType.NORMAL){
@@ -340,7 +391,7 @@ public class Interpreter {
                             case FOR_ITERATOR_LOOP -> {
                                 Value.TraitValue itr=(Value.TraitValue)stack.pop();
                                 stack.push(itr.wrapped);//call trait on unwrapped value
-                                Parser.Callable called=itr.wrapped.type.getTraitField(((Parser.ForIteratorLoop) next).itrNext);
+                                Parser.Callable called=((Parser.ForIteratorLoop) next).cache.get(itr.wrapped.type);
                                 ExitType e=call(called, next, stack, globalVariables, variables, ioContext);
                                 if(e!=ExitType.NORMAL){
                                     return e;
@@ -361,12 +412,13 @@ public class Interpreter {
                     }
                     case SWITCH -> {
                         assert next instanceof Parser.SwitchToken;
+                        Parser.SwitchCaseBlock block=((Parser.SwitchToken)next).block;
                         Value v= stack.pop();
-                        Integer jumpTo=((Parser.SwitchToken)next).block.blockJumps.get(v);
-                        if(jumpTo==null){
-                            ip+=((Parser.SwitchToken)next).block.defaultJump;
+                        if(block.intTable!=null){
+                            ip+=block.intTable.target(v);
                         }else{
-                            ip+=jumpTo;
+                            Integer jumpTo=block.blockJumps.get(v);
+                            ip+=jumpTo==null?block.defaultJump:jumpTo;
                         }
                         incIp=false;
                     }
@@ -389,9 +441,7 @@ public class Interpreter {
                         assert next instanceof Parser.TupleElementAccess;
                         Value tuple = stack.pop();
                         int index = ((Parser.TupleElementAccess) next).index;
-                        stack.push(new Value.ReferenceValue(((Type.TupleLike)tuple.type).getElement(index),
-                                ()->tuple.getField(index),(val)->tuple.set(index,val)
-                        ));
+                        stack.push(new Value.FieldReference(((Type.TupleLike)tuple.type).getElement(index),tuple,index));
                     }
                     case TUPLE_SET_INDEX -> {
                         assert next instanceof Parser.TupleElementAccess;
@@ -420,16 +470,33 @@ public class Interpreter {
     }
 
     private ExitType call(Parser.Callable called, Parser.Token next, RandomAccessStack<Value> stack,
-                          ArrayList<Value[]> globalVariables, ArrayList<Value[]> variables,
+                          Value[] globalVariables, Value[] variables,
                           IOContext context)
             throws RandomAccessStack.StackUnderflow, ConcatRuntimeError {
+        if(profiler==null){
+            return callUnprofiled(called,next,stack,globalVariables,variables,context);
+        }else if(called instanceof Value.InternalProcedure){//timing every internal call would distort the measured times
+            profiler.count(called);
+            return callUnprofiled(called,next,stack,globalVariables,variables,context);
+        }
+        profiler.enter(called);
+        try{
+            return callUnprofiled(called,next,stack,globalVariables,variables,context);
+        }finally {
+            profiler.exit();
+        }
+    }
+    private ExitType callUnprofiled(Parser.Callable called, Parser.Token next, RandomAccessStack<Value> stack,
+                                    Value[] globalVariables, Value[] variables,
+                                    IOContext context)
+            throws RandomAccessStack.StackUnderflow, ConcatRuntimeError {
         if(called instanceof Value.NativeProcedure nativeProc){
             int count=nativeProc.argCount();
             Value[] args=new Value[count];
             for(int i=count-1;i>=0;i--){
                 args[i]= stack.pop();
             }
-            args=nativeProc.callWith(args);
+            args=metrics!=null?metrics.callNative(nativeProc,args):nativeProc.callWith(args);
             for (Value arg : args) {
                 stack.push(arg);
             }
@@ -464,17 +531,59 @@ public class Interpreter {
             }
             return null;
         }
+        if(TypeQueryCache.PRINT_STATS){
+            context.stdErr.println(TypeQueryCache.stats());
+        }
+        //native procedures write to System.out, share the buffer to keep the order of the outputs
+        IOContext buffered=context.buffered(IOContext.isInteractive());
         PrintStream outTmp = System.out;
-        System.setOut(context.stdOut);
+        System.setOut(buffered.stdOut);
         PrintStream errTmp = System.err;
-        System.setErr(context.stdErr);
+        System.setErr(buffered.stdErr);
         InputStream inTmp  = System.in;
-        System.setIn(context.stdIn);
+        System.setIn(buffered.stdIn);
         Interpreter ip=new Interpreter();
-        RandomAccessStack<Value> stack = ip.run(program, arguments, context);
-        System.setIn(inTmp);
-        System.setOut(outTmp);
-        System.setErr(errTmp);
+        if(profilePath!=null){
+            ip.profiler=new Profiler(Profiler.DEFAULT_SAMPLE_INTERVAL_MILLIS);
+            ip.profiler.start();
+        }
+        Thread metricsHook=null;
+        if(metricsPath!=null){
+            ip.metrics=new InterpreterMetrics();
+            metricsHook=ip.metrics.writeOnShutdown(metricsPath);
+        }
+        RandomAccessStack<Value> stack;
+        try {
+            stack = ip.run(program, arguments, buffered);
+        }finally {
+            try {
+                if(ip.profiler!=null){
+                    ip.profiler.stop();
+                }
+            }finally {
+                buffered.flush();
+                System.setIn(inTmp);
+                System.setOut(outTmp);
+                System.setErr(errTmp);
+            }
+            //write the reports after restoring the streams, so that errors are visible
+            if(ip.profiler!=null){
+                try {
+                    ip.profiler.write(profilePath);
+                } catch (IOException e) {
+                    context.stdErr.println("could not write profile to "+profilePath+": "+e.getMessage());
+                }
+            }
+            if(metricsHook!=null){
+                try {
+                    ip.metrics.write(metricsPath);
+                } catch (IOException e) {
+                    context.stdErr.println("could not write metrics to "+metricsPath+": "+e.getMessage());
+                }finally {//the hook is only needed if the program is terminated before this point
+                    Runtime.getRuntime().removeShutdownHook(metricsHook);
+                }
+            }
+        }
         context.stdOut.println("\nStack:");
         context.stdOut.println(stack);
         return program;
@@ -483,18 +592,34 @@ public class Interpreter {
     public static void main(String[] args) throws IOException {
         FilePosition.ID_MODE=false;
         if(args.length==0){
-            System.out.println("usage: <pathToFile> (-lib <libPath>)");
+            System.out.println("usage: <pathToFile> (-lib <libPath>) (-engine tokens|bytecode) (-profile <outputPath>) (-metrics <outputPath>)");
             return;
         }
         String path=args[0];
         int consumed=1;
-        if(args.length>1&&args[1].equals("-lib")){
-            consumed+=2;
-            if(args.length<3){
-                System.out.println("missing parameter for -lib");
+        while(consumed<args.length&&(args[consumed].equals("-lib")||args[consumed].equals("-engine")||
+                args[consumed].equals("-profile")||args[consumed].equals("-metrics"))){
+            if(args.length<consumed+2){
+                System.out.println("missing parameter for "+args[consumed]);
                 return;
             }
-            Parser.libPath=args[2];
+            if(args[consumed].equals("-lib")){
+                Parser.libPath=args[consumed+1];
+            }else if(args[consumed].equals("-profile")){
+                profilePath=args[consumed+1];
+            }else if(args[consumed].equals("-metrics")){
+                metricsPath=args[consumed+1];
+            }else{
+                switch (args[consumed+1]){
+                    case "tokens" -> defaultEngine=Engine.TOKENS;
+                    case "bytecode" -> defaultEngine=Engine.BYTECODE;
+                    default -> {
+                        System.out.println("unknown engine: "+args[consumed+1]+" (expected tokens or bytecode)");
+                        return;
+                    }
+                }
+            }
+            consumed+=2;
         }
         File libDir=new File(Parser.libPath);
         if(!(libDir.exists()||libDir.mkdirs())){
@@ -503,7 +628,7 @@ public class Interpreter {
         }
         String[] arguments=new String[args.length-consumed+1];
         arguments[0]=System.getProperty("user.dir");
-        System.arraycopy(args,1,arguments,consumed,args.length-consumed);
+        System.arraycopy(args,consumed,arguments,1,args.length-consumed);
         compileAndRun(path,arguments,defaultContext);
     }
 
@@ -0,0 +1,171 @@
+package bsoelch.concat;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Opt-in runtime counters of the interpreter (enabled with the -metrics option),
+ * counts the executed tokens (or opcodes of the bytecode engine), the allocated values of each class,
+ * the allocated variable frames, native procedure calls and the maximum depth of the operand stack,
+ * the counters can be written as JSON and are accessible from Concat through the internal procedure interpreterMetrics
+ */
+final class InterpreterMetrics {
+    /**metrics of the currently running interpreter, null if metrics are disabled*/
+    static InterpreterMetrics current;
+
+    /**names of the opcodes defined in {@link ByteCode}*/
+    private static final String[] OPCODE_NAMES=opcodeNames();
+    private static String[] opcodeNames(){
+        ArrayList<String> names=new ArrayList<>();
+        for(Field f:ByteCode.class.getDeclaredFields()){
+            int mod=f.getModifiers();
+            if(Modifier.isStatic(mod)&&Modifier.isFinal(mod)&&f.getType()==int.class&&!f.getName().startsWith("OP_")){
+                try {
+                    int opcode=f.getInt(null);
+                    while(names.size()<=opcode){
+                        names.add(null);
+                    }
+                    names.set(opcode,f.getName());
+                } catch (IllegalAccessException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        return names.toArray(String[]::new);
+    }
+
+    private final long[] tokens=new long[Parser.TokenType.values().length];
+    private final long[] opcodes=new long[OPCODE_NAMES.length];
+    //concurrent maps allow the shutdown hook to iterate while the interpreter thread adds entries
+    private final ConcurrentHashMap<Class<?>,long[]> allocations=new ConcurrentHashMap<>();
+    /**call count and time in nanoseconds for each native procedure name*/
+    private final ConcurrentHashMap<String,long[]> nativeCalls=new ConcurrentHashMap<>();
+    private long framesAllocated;
+    private long framesReused;
+    private int maxStackDepth;
+
+    void token(Parser.TokenType type,int stackDepth){
+        tokens[type.ordinal()]++;
+        if(stackDepth>maxStackDepth){
+            maxStackDepth=stackDepth;
+        }
+    }
+    void opcode(int opcode,int stackDepth){
+        opcodes[opcode]++;
+        if(stackDepth>maxStackDepth){
+            maxStackDepth=stackDepth;
+        }
+    }
+    void allocated(Class<?> valueClass){
+        allocations.computeIfAbsent(valueClass,c->new long[1])[0]++;
+    }
+    void frame(boolean reused){
+        if(reused){
+            framesReused++;
+        }else{
+            framesAllocated++;
+        }
+    }
+    Value[] callNative(Value.NativeProcedure proc,Value[] args) throws ConcatRuntimeError {
+        long start=System.nanoTime();
+        try{
+            return proc.callWith(args);
+        }finally {
+            long[] data=nativeCalls.computeIfAbsent(proc.name(),n->new long[2]);
+            data[0]++;
+            data[1]+=System.nanoTime()-start;
+        }
+    }
+
+    private static void appendCounts(StringBuilder json,String name,Map<String,Long> counts){
+        json.append("  \"").append(name).append("\": {");
+        boolean first=true;
+        for(Map.Entry<String,Long> e:counts.entrySet()){
+            json.append(first?"\n":",\n").append("    ");
+            appendString(json,e.getKey());
+            json.append(": ").append(e.getValue());
+            first=false;
+        }
+        json.append(first?"},\n":"\n  },\n");
+    }
+    private static void appendString(StringBuilder json,String str){
+        json.append('"');
+        for(char c:str.toCharArray()){
+            switch (c){
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                default -> {
+                    if(c<0x20){
+                        json.append(String.format("\\u%04x",(int)c));
+                    }else{
+                        json.append(c);
+                    }
+                }
+            }
+        }
+        json.append('"');
+    }
+
+    /**@return the current values of all counters as JSON object, counters that are zero are omitted,
+     * when called from another thread while the program is running the counters may be slightly out of date*/
+    String toJSON(){
+        StringBuilder json=new StringBuilder("{\n");
+        TreeMap<String,Long> counts=new TreeMap<>();
+        for(Parser.TokenType t:Parser.TokenType.values()){
+            if(tokens[t.ordinal()]>0){
+                counts.put(t.name(),tokens[t.ordinal()]);
+            }
+        }
+        appendCounts(json,"tokens",counts);
+        counts.clear();
+        for(int i=0;i<opcodes.length;i++){
+            if(opcodes[i]>0){
+                counts.put(OPCODE_NAMES[i],opcodes[i]);
+            }
+        }
+        appendCounts(json,"opcodes",counts);
+        counts.clear();
+        for(Map.Entry<Class<?>,long[]> e:allocations.entrySet()){
+            counts.put(e.getKey().getSimpleName(),e.getValue()[0]);
+        }
+        appendCounts(json,"allocations",counts);
+        json.append("  \"nativeCalls\": {");
+        boolean first=true;
+        for(Map.Entry<String,long[]> e:new TreeMap<>(nativeCalls).entrySet()){
+            json.append(first?"\n":",\n").append("    ");
+            appendString(json,e.getKey());
+            json.append(": {\"calls\": ").append(e.getValue()[0]).append(", \"nanos\": ").append(e.getValue()[1])
+                    .append("}");
+            first=false;
+        }
+        json.append(first?"},\n":"\n  },\n");
+        json.append("  \"framesAllocated\": ").append(framesAllocated).append(",\n");
+        json.append("  \"framesReused\": ").append(framesReused).append(",\n");
+        json.append("  \"maxStackDepth\": ").append(maxStackDepth).append("\n}\n");
+        return json.toString();
+    }
+    void write(String path) throws IOException {
+        try(Writer out=new FileWriter(path)){
+            out.write(toJSON());
+        }
+    }
+    /**@return a shutdown hook writing the metrics to path if the program is terminated by a signal*/
+    Thread writeOnShutdown(String path){
+        Thread hook=new Thread(()->{
+            try {
+                write(path);
+            } catch (IOException e) {
+                System.err.println("could not write metrics to "+path+": "+e);
+            }
+        },"concat-metrics");
+        Runtime.getRuntime().addShutdownHook(hook);
+        return hook;
+    }
+}
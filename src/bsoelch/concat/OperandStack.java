@@ -0,0 +1,207 @@
+package bsoelch.concat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**operand stack of the bytecode interpreter,
+ * ints and floats are stored unboxed and only wrapped in a {@link Value} when they are popped as a value*/
+final class OperandStack {
+    static final byte BOXED = 0;
+    static final byte INT   = 1;
+    static final byte UINT  = 2;
+    static final byte FLOAT = 3;
+
+    private Value[] boxed;
+    /**raw values of unboxed elements, floats are stored as their bit representation*/
+    private long[] raw;
+    private byte[] tags;
+    private int size;
+
+    OperandStack(int initCap){
+        initCap=Math.max(initCap,10);
+        boxed=new Value[initCap];
+        raw=new long[initCap];
+        tags=new byte[initCap];
+    }
+
+    private void ensureCap(int newCap) {
+        if(newCap>tags.length){
+            newCap=Math.max(2*tags.length,newCap);
+            boxed=Arrays.copyOf(boxed,newCap);
+            raw=Arrays.copyOf(raw,newCap);
+            tags=Arrays.copyOf(tags,newCap);
+        }
+    }
+    private Value box(int i){
+        return switch (tags[i]){
+            case BOXED -> boxed[i];
+            case INT   -> Value.ofInt(raw[i],false);
+            case UINT  -> Value.ofInt(raw[i],true);
+            case FLOAT -> Value.ofFloat(Double.longBitsToDouble(raw[i]));
+            default -> throw new RuntimeException("unexpected tag: "+tags[i]);
+        };
+    }
+
+    void push(Value val){
+        if(size>=tags.length){
+            ensureCap(size+1);
+        }
+        boxed[size]=val;
+        tags[size++]=BOXED;
+    }
+    void pushInt(long val,boolean unsigned){
+        if(size>=tags.length){
+            ensureCap(size+1);
+        }
+        boxed[size]=null;
+        raw[size]=val;
+        tags[size++]=unsigned?UINT:INT;
+    }
+    void pushFloat(double val){
+        if(size>=tags.length){
+            ensureCap(size+1);
+        }
+        boxed[size]=null;
+        raw[size]=Double.doubleToRawLongBits(val);
+        tags[size++]=FLOAT;
+    }
+
+    /**@return true if the top element is stored as an unboxed int or uint*/
+    boolean isUnboxedInt(){
+        return size>0&&(tags[size-1]==INT||tags[size-1]==UINT);
+    }
+    /**@return the tag of the top element*/
+    byte topTag() throws RandomAccessStack.StackUnderflow {
+        if(size<=0){
+            throw new RandomAccessStack.StackUnderflow();
+        }
+        return tags[size-1];
+    }
+    /**pops the raw value of an unboxed element*/
+    long popRaw(){
+        assert tags[size-1]!=BOXED;
+        return raw[--size];
+    }
+    Value peek() throws RandomAccessStack.StackUnderflow {
+        if(size<=0){
+            throw new RandomAccessStack.StackUnderflow();
+        }
+        return box(size-1);
+    }
+    Value pop() throws RandomAccessStack.StackUnderflow {
+        if(size<=0){
+            throw new RandomAccessStack.StackUnderflow();
+        }
+        Value val=box(--size);
+        boxed[size]=null;
+        return val;
+    }
+    long popLong() throws RandomAccessStack.StackUnderflow, TypeError {
+        if(size<=0){
+            throw new RandomAccessStack.StackUnderflow();
+        }
+        size--;
+        if(tags[size]==BOXED){
+            Value val=boxed[size];
+            boxed[size]=null;
+            return val.asLong();
+        }else if(tags[size]==FLOAT){
+            return (long)Double.longBitsToDouble(raw[size]);
+        }
+        return raw[size];
+    }
+    double popDouble() throws RandomAccessStack.StackUnderflow, TypeError {
+        if(size<=0){
+            throw new RandomAccessStack.StackUnderflow();
+        }
+        size--;
+        return switch (tags[size]){
+            case BOXED -> {
+                Value val=boxed[size];
+                boxed[size]=null;
+                yield val.asDouble();
+            }
+            case INT -> raw[size];
+            case UINT -> (raw[size]>>>1)*2.0;
+            default -> Double.longBitsToDouble(raw[size]);
+        };
+    }
+
+    int size() {
+        return size;
+    }
+
+    void drop(int offset,int count) throws RandomAccessStack.StackUnderflow {
+        if(offset+count>size){
+            throw new RandomAccessStack.StackUnderflow();
+        }
+        if(offset>0){
+            System.arraycopy(boxed,size-offset,boxed,size-(count+offset),offset);
+            System.arraycopy(raw,size-offset,raw,size-(count+offset),offset);
+            System.arraycopy(tags,size-offset,tags,size-(count+offset),offset);
+        }
+        Arrays.fill(boxed,size-count,size,null);
+        size-=count;
+    }
+    void dup(int offset,int count) throws RandomAccessStack.StackUnderflow {
+        if(offset+count>size){
+            throw new RandomAccessStack.StackUnderflow();
+        }
+        ensureCap(size+count);
+        System.arraycopy(boxed,size-(offset+count),boxed,size,count);
+        System.arraycopy(raw,size-(offset+count),raw,size,count);
+        System.arraycopy(tags,size-(offset+count),tags,size,count);
+        size+=count;
+    }
+    void rotate(int count,int steps) throws RandomAccessStack.StackUnderflow {
+        if(count<1){
+            throw new IndexOutOfBoundsException("count has to be at least 1 (got:"+count+")");
+        }
+        if(count>size){
+            throw new RandomAccessStack.StackUnderflow();
+        }
+        steps=(steps%count+count)%count;
+        if(steps==0){
+            return;
+        }
+        int start=size-count;
+        ensureCap(size+steps);
+        //move the first steps elements behind the top of the stack, then shift the whole block back
+        System.arraycopy(boxed,start,boxed,size,steps);
+        System.arraycopy(raw,start,raw,size,steps);
+        System.arraycopy(tags,start,tags,size,steps);
+        System.arraycopy(boxed,start+steps,boxed,start,count);
+        System.arraycopy(raw,start+steps,raw,start,count);
+        System.arraycopy(tags,start+steps,tags,start,count);
+        Arrays.fill(boxed,size,size+steps,null);
+    }
+
+    Value get(int i){
+        if(i<1||i>size){
+            throw new IndexOutOfBoundsException("stack-index has to be between 1 and "+size+" got:"+i);
+        }
+        return box(size-i);
+    }
+    void set(int i,Value val){
+        if(i<1||i>size){
+            throw new IndexOutOfBoundsException("stack-index has to be between 1 and "+size+" got:"+i);
+        }
+        boxed[size-i]=val;
+        tags[size-i]=BOXED;
+    }
+
+    /**boxes all elements of this stack*/
+    List<Value> asList() {
+        ArrayList<Value> list=new ArrayList<>(size);
+        for(int i=0;i<size;i++){
+            list.add(box(i));
+        }
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        return asList().toString();
+    }
+}
@@ -3,6 +3,7 @@ package bsoelch.concat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.IdentityHashMap;
+import java.util.function.Function;
 
 public class OverloadedProcedure implements Parser.Declareable {
     final String name;
@@ -13,6 +14,23 @@ public class OverloadedProcedure implements Parser.Declareable {
     final int nArgs;
     final int nGenericParams;
 
+    /**candidates for the types of the top two arguments,
+     * shared between copies of this procedure until a new procedure is added*/
+    private static final class DispatchIndex{
+        int generation=TypeQueryCache.generation;
+        final IdentityHashMap<Type,ArrayList<Parser.Callable>> byTop=new IdentityHashMap<>();
+        final IdentityHashMap<Type,IdentityHashMap<Type,ArrayList<Parser.Callable>>> byTopAndNext=new IdentityHashMap<>();
+        Object procedureSet;
+    }
+    private DispatchIndex index=new DispatchIndex();
+    /**@return the canonical key of the current list of procedures, computed once for each dispatch index*/
+    Object procedureSet(){
+        if(index.procedureSet==null){
+            index.procedureSet=TypeQueryCache.procedureSet(procedures);
+        }
+        return index.procedureSet;
+    }
+
     public OverloadedProcedure(Parser.Callable p0) {
         this.name = p0.name();
         this.isPublic = p0.isPublic();
@@ -30,6 +48,7 @@ public class OverloadedProcedure implements Parser.Declareable {
         procedures=new ArrayList<>(src.procedures);
         this.nArgs=src.nArgs;
         this.nGenericParams=src.nGenericParams;
+        this.index=src.index;
     }
 
     public boolean addProcedure(Parser.Callable newProc, boolean allowDuplicates) throws SyntaxError{
@@ -62,7 +81,7 @@ public class OverloadedProcedure implements Parser.Declareable {
         for(Parser.Callable p:procedures){//check for procedures with the same signature
             Type.Procedure t0=p.type();
             boolean isEqual=true;
-            IdentityHashMap<Type.GenericParameter, Type.GenericParameter> generics=new IdentityHashMap<>();
+            Type.GenericPairs generics=new Type.GenericPairs();
             for(int i=0;i<t0.inTypes.length;i++){
                 if(!t0.inTypes[i].equals(t1.inTypes[i],generics)||
                         t0.inTypes[i].mutability!=t1.inTypes[i].mutability){
@@ -80,9 +99,53 @@ public class OverloadedProcedure implements Parser.Declareable {
             }
         }
         procedures.add(newProc);
+        index=new DispatchIndex();
         return true;
     }
 
+    /**@return the procedures that can possibly be called with the given argument types,
+     * in the same order as in procedures*/
+    ArrayList<Parser.Callable> candidates(Type[] inTypes){
+        if(nArgs==0||procedures.size()<=1){
+            return procedures;
+        }
+        if(index.generation!=TypeQueryCache.generation){//casts may have changed
+            index.generation=TypeQueryCache.generation;
+            index.byTop.clear();
+            index.byTopAndNext.clear();
+        }
+        Type top=inTypes[nArgs-1];
+        if(top instanceof Type.OverloadedProcedurePointer){
+            return procedures;
+        }
+        ArrayList<Parser.Callable> candidates=index.byTop.computeIfAbsent(top,filter(procedures,nArgs-1));
+        if(nArgs<2||candidates.size()<=1||inTypes[nArgs-2] instanceof Type.OverloadedProcedurePointer){
+            return candidates;
+        }
+        return index.byTopAndNext.computeIfAbsent(top,t->new IdentityHashMap<>())
+                .computeIfAbsent(inTypes[nArgs-2],filter(candidates,nArgs-2));
+    }
+    private static Function<Type,ArrayList<Parser.Callable>> filter(ArrayList<Parser.Callable> procedures,int i){
+        return arg->{
+            ArrayList<Parser.Callable> filtered=new ArrayList<>();
+            for(Parser.Callable c:procedures){
+                if(mayMatch(c,i,arg)){
+                    filtered.add(c);
+                }
+            }
+            return filtered;
+        };
+    }
+    /**generic procedures are always possible matches,
+     * other procedures are excluded if arg cannot be cast to the i-th parameter without binding generics*/
+    private static boolean mayMatch(Parser.Callable c,int i,Type arg){
+        if(c.type() instanceof Type.GenericProcedureType){
+            return true;
+        }
+        Type.BoundMaps bounds=new Type.BoundMaps();
+        return TypeQueryCache.castType(arg,c.type().inTypes[i],bounds)!=Type.CastType.NONE||!bounds.isEmpty();
+    }
+
     @Override
     public Parser.DeclareableType declarableType() {
         return Parser.DeclareableType.OVERLOADED_PROCEDURE;
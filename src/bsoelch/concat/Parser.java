@@ -1,8 +1,10 @@
 package bsoelch.concat;
 
 import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.util.*;
-import java.util.regex.Pattern;
 
 public class Parser {
 
@@ -49,7 +51,9 @@ public class Parser {
         GLOBAL,LOCAL,CURRIED
     }
     enum AccessType{
-        READ,REFERENCE_TO, DECLARE
+        READ,REFERENCE_TO, DECLARE,
+        /**assignment to an already declared variable, replaces REFERENCE_TO followed by ASSIGN*/
+        WRITE
     }
 
     static class Token {
@@ -196,9 +200,11 @@ public class Parser {
     }
     static class ForIteratorLoop extends BlockToken{
         final Type.TraitFieldPosition itrNext;
+        final TraitFieldCache cache;
         ForIteratorLoop(Type.TraitFieldPosition itrNext,FilePosition pos) {
             super(BlockTokenType.FOR_ITERATOR_LOOP, pos,-1);
             this.itrNext = itrNext;
+            cache=new TraitFieldCache(itrNext);
         }
     }
     static class ContextOpen extends Token{
@@ -250,9 +256,14 @@ public class Parser {
     }
     static class ArrayCreatorToken extends Token implements CodeSection {
         final ArrayList<Token> tokens;
-        ArrayCreatorToken(ArrayList<Token> tokens, FilePosition pos) {
+        final Type contentType;
+        /**types of the elements pushed by tokens*/
+        final Type[] elementTypes;
+        ArrayCreatorToken(ArrayList<Token> tokens, Type contentType, Type[] elementTypes, FilePosition pos) {
             super(TokenType.NEW_ARRAY, pos);
             this.tokens=tokens;
+            this.contentType=contentType;
+            this.elementTypes=elementTypes;
         }
         @Override
         public String toString() {
@@ -343,12 +354,15 @@ public class Parser {
                     variableType=VariableType.CURRIED;
                     switch (accessType){
                         case READ,REFERENCE_TO -> {}
-                        case DECLARE ->
+                        case DECLARE,WRITE ->
                                 throw new RuntimeException("cannot declare to curried variables "+name);
                         default -> throw new RuntimeException("unreachable");
                     }
                 }else{
                     variableType=VariableType.LOCAL;
+                    if(access==AccessType.REFERENCE_TO){
+                        procedureId.variableReferences++;
+                    }
                 }
             }else{
                 throw new RuntimeException("all variables (including curried ones) should be global, " +
@@ -364,11 +378,13 @@ public class Parser {
     static class TraitFieldAccess extends Token{
         final boolean isDirect;
         final Type.TraitFieldPosition id;
+        final TraitFieldCache cache;
 
         TraitFieldAccess(boolean isDirect,FilePosition pos, Type.TraitFieldPosition id) {
             super(TokenType.TRAIT_FIELD_ACCESS, pos);
             this.isDirect=isDirect;
             this.id = id;
+            cache=new TraitFieldCache(id);
         }
     }
 
@@ -552,6 +568,9 @@ public class Parser {
         FilePosition defaultStart=null;
 
         final HashMap<Value,Integer> blockJumps = new HashMap<>();
+        /**jump table for integral case values, initialized at the end of the switch-case (null if not applicable)*/
+        IntSwitchTable intTable;
+        int endJump=-1;
         final ArrayDeque<Integer> blockEnds = new ArrayDeque<>();
         final Type switchType;
         VariableContext context;
@@ -620,8 +639,9 @@ public class Parser {
             }else if(switchType==null){
                 throw new SyntaxError("switch-case does not contain any case block",pos);
             }
+            endJump=endPos-start;
             if(defaultStart==null) {
-                defaultJump = endPos - start;
+                defaultJump = endJump;
             }
             if(switchType instanceof Type.Enum){//special checks for enum switch-case
                 if(defaultStart!=null){
@@ -643,6 +663,7 @@ public class Parser {
                     throw new SyntaxError("enum switch-case does not cover all cases",pos);
                 }
             }
+            intTable=IntSwitchTable.of(blockJumps,defaultJump);
         }
 
         @Override
@@ -784,68 +805,49 @@ public class Parser {
 
     static String libPath=System.getProperty("user.dir")+File.separator+"lib/";
 
-    static final String DEC_DIGIT = "\\d";
-    static final String BIN_DIGIT = "[01]";
-    static final String HEX_DIGIT = "[\\da-fA-F]";
-    static final String UNSIGNED_POSTFIX = "[u|U]?";
     static final String BIN_PREFIX = "0b";
     static final String HEX_PREFIX = "0x";
-    static final String DEC_INT_PATTERN = "-?"+DEC_DIGIT + "+";
-    static final String BIN_INT_PATTERN = "-?"+BIN_PREFIX + BIN_DIGIT + "+";
-    static final String HEX_INT_PATTERN = "-?"+HEX_PREFIX + HEX_DIGIT + "+";
-    static final Pattern intDec=Pattern.compile(DEC_INT_PATTERN+UNSIGNED_POSTFIX);
-    static final Pattern intBin=Pattern.compile(BIN_INT_PATTERN+UNSIGNED_POSTFIX);
-    static final Pattern intHex=Pattern.compile(HEX_INT_PATTERN+UNSIGNED_POSTFIX);
-    static final String DEC_FLOAT_MAGNITUDE = DEC_INT_PATTERN + "\\.?"+DEC_DIGIT+"*";
-    static final String BIN_FLOAT_MAGNITUDE = BIN_INT_PATTERN + "\\.?"+BIN_DIGIT+"*";
-    static final String HEX_FLOAT_MAGNITUDE = HEX_INT_PATTERN + "\\.?"+HEX_DIGIT+"*";
-    static final Pattern floatDec=Pattern.compile("NaN|Infinity|("+
-            DEC_FLOAT_MAGNITUDE+"([Ee][+-]?"+DEC_DIGIT+"+)?)");
-    static final Pattern floatHex=Pattern.compile(HEX_FLOAT_MAGNITUDE+"([PpXx#][+-]?"+HEX_DIGIT+"+)?");
-    static final Pattern floatBin=Pattern.compile(BIN_FLOAT_MAGNITUDE+"([EePpXx#][+-]?"+BIN_DIGIT+"+)?");
 
     enum WordState{
         ROOT,STRING,UNICODE_STRING,COMMENT,LINE_COMMENT
     }
 
+    /**reads the characters of a source file from an in-memory array,
+     * the start of the current word is stored as packed line and column
+     * and only converted to a FilePosition when the position is requested*/
     static class ParserReader{
-        final Reader input;
+        final char[] input;
+        private int index;
         final StringBuilder buffer=new StringBuilder();
 
-        int cached=-1;
-
         private String fileId;
         private final String path;
         private int line =1;
         private int posInLine =1;
+        /**line (upper 32 bits) and column (lower 32 bits) of the start of the current word,
+         * -1 if the start was not set yet*/
+        private long wordStart=-1;
         private FilePosition currentPos;
 
-        private ParserReader(String path) throws SyntaxError {
+        private ParserReader(String path,char[] input) {
             this.fileId="???";
             this.path=path;
-            try {
-                this.input = new BufferedReader(new FileReader(path));
-            } catch (FileNotFoundException e) {
-                throw new SyntaxError("File not found: "+path,new FilePosition(fileId,path,0,0));
-            }
+            this.input = input;
         }
 
-        int nextChar() throws IOException {
-            int c;
-            if(cached>=0){
-                c=cached;
-                cached = -1;
-            }else{
-                c=input.read();
-            }
+        int nextChar() {
             posInLine++;
+            if(index>=input.length){
+                return -1;
+            }
+            char c=input[index++];
             if(c=='\n'){//addLater? support for \r line separator
                 line++;
                 posInLine=1;
             }
             return c;
         }
-        int forceNextChar() throws IOException, SyntaxError {
+        int forceNextChar() throws SyntaxError {
             int c=nextChar();
             if (c < 0) {
                 throw new SyntaxError("unexpected end of File",currentPos());
@@ -854,16 +856,23 @@ public class Parser {
         }
         FilePosition currentPos() {
             if(currentPos==null){
-                currentPos=new FilePosition(fileId,path,line, posInLine);
+                currentPos=wordStart<0?new FilePosition(fileId,path,line, posInLine):
+                        new FilePosition(fileId,path,wordStart>>>32,(int)wordStart);
             }
             return currentPos;
         }
         void nextToken() {
-            currentPos=new FilePosition(fileId,path, line, posInLine);
+            updateNextPos();
             buffer.setLength(0);
         }
         void updateNextPos() {
-            currentPos=new FilePosition(fileId,path, line, posInLine);
+            wordStart=((long)line<<32)|(posInLine&0xffffffffL);
+            currentPos=null;
+        }
+        void addWord(ArrayList<StringWithPos> words) {
+            if(buffer.length()>0){
+                words.add(new StringWithPos(buffer.toString(),currentPos()));
+            }
         }
     }
 
@@ -1111,6 +1120,8 @@ public class Parser {
 
     static abstract class VariableContext{
         abstract RootContext root();
+        /**number of variable slots in the frame of this context,
+         * variables of blocks are stored in the frame of the enclosing procedure (or the root context)*/
         int variables=0;
 
         public int varCount() {
@@ -1536,6 +1547,10 @@ public class Parser {
             return parent.procedureContext();
         }
 
+        @Override
+        int nextVarId() {
+            return parent.nextVarId();
+        }
         @Override
         int level() {
             return parent.level()+1;
@@ -1601,6 +1616,9 @@ public class Parser {
 
     static class ProcedureContext extends GenericContext {
         ArrayList<CurriedVariable> curried=new ArrayList<>();
+        /**number of tokens creating references to local variables of this procedure,
+         * the frames of procedures with variable references cannot be reused after the call returns*/
+        int variableReferences=0;
         ProcedureContext(VariableContext parent){
             super(parent, true);
             assert parent!=null;
@@ -1637,6 +1655,10 @@ public class Parser {
             return this;
         }
 
+        @Override
+        int nextVarId() {
+            return variables++;
+        }
         @Override
         int level() {
             return 0;
@@ -1729,6 +1751,66 @@ public class Parser {
         }
     }
 
+    private static boolean isDigit(char c,int base){
+        return switch (base){
+            case 2 -> c=='0'||c=='1';
+            case 10 -> c>='0'&&c<='9';
+            case 16 -> (c>='0'&&c<='9')||(c>='a'&&c<='f')||(c>='A'&&c<='F');
+            default -> throw new IllegalArgumentException("unsupported base: "+base);
+        };
+    }
+    /**@return the index of the first char at or after i that is not a digit in the given base*/
+    private static int skipDigits(String str,int i,int base){
+        while(i<str.length()&&isDigit(str.charAt(i),base)){
+            i++;
+        }
+        return i;
+    }
+    /**checks if str has the form -?[prefix][digit]+[u|U]?*/
+    private static boolean isIntLiteral(String str,String prefix,int base){
+        int i=str.startsWith("-")?1:0;
+        if(!str.startsWith(prefix,i)){
+            return false;
+        }
+        i+=prefix.length();
+        int start=i;
+        i=skipDigits(str,i,base);
+        if(i==start){
+            return false;
+        }
+        if(i<str.length()&&(str.charAt(i)=='u'||str.charAt(i)=='U'||str.charAt(i)=='|')){
+            i++;
+        }
+        return i==str.length();
+    }
+    /**checks if str has the form -?[prefix][digit]+\.?[digit]*([expChars][+-]?[digit]+)?*/
+    private static boolean isFloatLiteral(String str,String prefix,int base,String expChars){
+        int i=str.startsWith("-")?1:0;
+        if(!str.startsWith(prefix,i)){
+            return false;
+        }
+        i+=prefix.length();
+        int start=i;
+        i=skipDigits(str,i,base);
+        if(i==start){
+            return false;
+        }
+        if(i<str.length()&&str.charAt(i)=='.'){
+            i=skipDigits(str,i+1,base);
+        }
+        if(i<str.length()&&expChars.indexOf(str.charAt(i))>=0){
+            i++;
+            if(i<str.length()&&(str.charAt(i)=='+'||str.charAt(i)=='-')){
+                i++;
+            }
+            int expStart=i;
+            i=skipDigits(str,i,base);
+            if(i==expStart){
+                return false;
+            }
+        }
+        return i==str.length();
+    }
     /**@return true if the value was an integer otherwise true*/
     private static boolean tryParseInt(ArrayList<Token> tokens, String str0,FilePosition pos) throws SyntaxError {
         try {
@@ -1738,15 +1820,15 @@ public class Parser {
                 str=str.substring(0,str.length()-1);
                 unsigned=true;
             }
-            if(intDec.matcher(str).matches()){//dez-Int
+            if(isIntLiteral(str,"",10)){//dez-Int
                 tokens.add(new ValueToken(Value.ofInt(Value.parseInt(str,10,unsigned), unsigned), pos));
                 return true;
-            }else if(intBin.matcher(str).matches()){//bin-Int
-                str=str.replaceAll(BIN_PREFIX,"");//remove header
+            }else if(isIntLiteral(str,BIN_PREFIX,2)){//bin-Int
+                str=str.replace(BIN_PREFIX,"");//remove header
                 tokens.add(new ValueToken(Value.ofInt(Value.parseInt(str,2,unsigned), unsigned), pos));
                 return true;
-            }else if(intHex.matcher(str).matches()){ //hex-Int
-                str=str.replaceAll(HEX_PREFIX,"");//remove header
+            }else if(isIntLiteral(str,HEX_PREFIX,16)){ //hex-Int
+                str=str.replace(HEX_PREFIX,"");//remove header
                 tokens.add(new ValueToken(Value.ofInt(Value.parseInt(str,16,unsigned), unsigned), pos));
                 return true;
             }
@@ -1889,8 +1971,13 @@ public class Parser {
             topLevelContext=openedFiles.pollLast();
         }
     }
-    public static Program parse(File file, ParserState pState, IOContext ioContext) throws IOException, SyntaxError {
-        ParserReader reader=new ParserReader(file.getAbsolutePath());
+    /**words of a source file,
+     * error is the syntax error that stopped the lexer or null if the whole file was read successfully*/
+    record LexedFile(String fileId,ArrayList<StringWithPos> words,FilePosition end,SyntaxError error){}
+    /**splits the content of a source file into the words that are passed to the type checker*/
+    static LexedFile lex(String path,byte[] content) {
+        ParserReader reader=new ParserReader(path,new String(content, Charset.defaultCharset()).toCharArray());
+        ArrayList<StringWithPos> words=new ArrayList<>();
         int c;
         String fileId=null;
         while((c=reader.nextChar())>=0){
@@ -1906,136 +1993,162 @@ public class Parser {
         reader.fileId=fileId;
         reader.nextToken();
         if(fileId==null){
-            throw new SyntaxError("invalid start of file, all concat files have to start with \"<file-id> :\"",
-                    reader.currentPos());
+            return new LexedFile(null,words,reader.currentPos(),new SyntaxError(
+                    "invalid start of file, all concat files have to start with \"<file-id> :\"",reader.currentPos()));
         }
-        if(pState==null){
-            pState=new ParserState(ioContext, new RootContext());
-        }else if(pState.files.contains(fileId)){
-            //TODO detect if file was already included through different path
-            return new Program(pState.globalCode,pState.files,pState.rootContext);
-        }
-        //ensure that each file is included only once
-        pState.files.add(fileId);
-
-        pState.startFile(fileId);
-
         reader.nextToken();
         WordState state=WordState.ROOT;
         int nComments=0;//counts the currently open block-comments
-        while((c=reader.nextChar())>=0){
-            switch(state){
-                case ROOT:
-                    if(Character.isWhitespace(c)){
-                        if(reader.buffer.length()>0){
-                            finishWord(reader.buffer.toString(), pState,reader.currentPos());
-                            reader.nextToken();
-                        }
-                        reader.updateNextPos();
-                    }else{
-                        switch (c) {
-                            case '"', '\'' -> {
-                                state = WordState.STRING;
-                                if(reader.buffer.toString().equals("u")){
-                                    state = WordState.UNICODE_STRING;
-                                }else if(reader.buffer.length()>0) {
-                                    throw new SyntaxError("Illegal string prefix:\"" + reader.buffer + "\"",
-                                            reader.currentPos());
-                                }
-                                reader.buffer.append((char)c);
-                            }
-                            case '#' -> {
-                                c = reader.forceNextChar();
-                                if (c == '#') {
-                                    state = WordState.LINE_COMMENT;
-                                    finishWord(reader.buffer.toString(), pState,reader.currentPos());
-                                    reader.nextToken();
-                                } else if (c == '+') {
-                                    state = WordState.COMMENT;
-                                    nComments=1;
-                                    finishWord(reader.buffer.toString(), pState,reader.currentPos());
-                                    reader.nextToken();
-                                } else {
-                                    reader.buffer.append('#').append((char) c);
-                                }
+        try{
+            while((c=reader.nextChar())>=0){
+                switch(state){
+                    case ROOT:
+                        if(Character.isWhitespace(c)){
+                            if(reader.buffer.length()>0){
+                                reader.addWord(words);
+                                reader.nextToken();
                             }
-                            default -> reader.buffer.append((char) c);
-                        }
-                    }
-                    break;
-                case STRING,UNICODE_STRING:
-                    if(c==reader.buffer.charAt(state==WordState.STRING?0:1)){
-                        finishWord(reader.buffer.toString(),pState,reader.currentPos());
-                        reader.nextToken();
-                        state=WordState.ROOT;
-                    }else{
-                        if(c=='\\'){
-                            c =  reader.forceNextChar();
+                            reader.updateNextPos();
+                        }else{
                             switch (c) {
-                                case '\\', '\'', '"' -> reader.buffer.append((char) c);
-                                case 'n' -> reader.buffer.append('\n');
-                                case 't' -> reader.buffer.append('\t');
-                                case 'r' -> reader.buffer.append('\r');
-                                case 'b' -> reader.buffer.append('\b');
-                                case 'f' -> reader.buffer.append('\f');
-                                case '0' -> reader.buffer.append('\0');
-                                case 'x' -> { //addLater in concat version \x?? will not be converted to its unicode escape sequence
-                                    String tmp = String.valueOf((char) reader.forceNextChar()) +
-                                            (char) reader.forceNextChar();
-                                    reader.buffer.append(Character.toChars(Integer.parseInt(tmp, 16)));
+                                case '"', '\'' -> {
+                                    state = WordState.STRING;
+                                    if(reader.buffer.toString().equals("u")){
+                                        state = WordState.UNICODE_STRING;
+                                    }else if(reader.buffer.length()>0) {
+                                        throw new SyntaxError("Illegal string prefix:\"" + reader.buffer + "\"",
+                                                reader.currentPos());
+                                    }
+                                    reader.buffer.append((char)c);
                                 }
-                                case 'u', 'U' -> {
-                                    int l = c == 'u' ? 4 : 6;
-                                    StringBuilder tmp = new StringBuilder(l);
-                                    for (int i = 0; i < l; i++) {
-                                        tmp.append((char)  reader.forceNextChar());
-                                        //TODO check if given character is a valid digit (0-9a-fA-F)
+                                case '#' -> {
+                                    c = reader.forceNextChar();
+                                    if (c == '#') {
+                                        state = WordState.LINE_COMMENT;
+                                        reader.addWord(words);
+                                        reader.nextToken();
+                                    } else if (c == '+') {
+                                        state = WordState.COMMENT;
+                                        nComments=1;
+                                        reader.addWord(words);
+                                        reader.nextToken();
+                                    } else {
+                                        reader.buffer.append('#').append((char) c);
                                     }
-                                    reader.buffer.append(Character.toChars(Integer.parseInt(tmp.toString(), 16)));
                                 }
-                                default ->
-                                        throw new IllegalArgumentException("The escape sequence: '\\" + c + "' is not supported");
+                                default -> reader.buffer.append((char) c);
                             }
-                        }else{
-                            reader.buffer.append((char)c);
                         }
-                    }
-                    break;
-                case COMMENT:
-                    if(c=='+'){
-                        c = reader.forceNextChar();
-                        if(c=='#'){
-                            nComments--;
-                            if(nComments==0){
-                                state=WordState.ROOT;
+                        break;
+                    case STRING,UNICODE_STRING:
+                        if(c==reader.buffer.charAt(state==WordState.STRING?0:1)){
+                            reader.addWord(words);
+                            reader.nextToken();
+                            state=WordState.ROOT;
+                        }else{
+                            if(c=='\\'){
+                                c =  reader.forceNextChar();
+                                switch (c) {
+                                    case '\\', '\'', '"' -> reader.buffer.append((char) c);
+                                    case 'n' -> reader.buffer.append('\n');
+                                    case 't' -> reader.buffer.append('\t');
+                                    case 'r' -> reader.buffer.append('\r');
+                                    case 'b' -> reader.buffer.append('\b');
+                                    case 'f' -> reader.buffer.append('\f');
+                                    case '0' -> reader.buffer.append('\0');
+                                    case 'x' -> { //addLater in concat version \x?? will not be converted to its unicode escape sequence
+                                        String tmp = String.valueOf((char) reader.forceNextChar()) +
+                                                (char) reader.forceNextChar();
+                                        reader.buffer.append(Character.toChars(Integer.parseInt(tmp, 16)));
+                                    }
+                                    case 'u', 'U' -> {
+                                        int l = c == 'u' ? 4 : 6;
+                                        StringBuilder tmp = new StringBuilder(l);
+                                        for (int i = 0; i < l; i++) {
+                                            tmp.append((char)  reader.forceNextChar());
+                                            //TODO check if given character is a valid digit (0-9a-fA-F)
+                                        }
+                                        reader.buffer.append(Character.toChars(Integer.parseInt(tmp.toString(), 16)));
+                                    }
+                                    default ->
+                                            throw new IllegalArgumentException("The escape sequence: '\\" + c + "' is not supported");
+                                }
+                            }else{
+                                reader.buffer.append((char)c);
                             }
                         }
-                    }else if(c=='#'){
-                        c = reader.forceNextChar();
+                        break;
+                    case COMMENT:
                         if(c=='+'){
-                            nComments++;
+                            c = reader.forceNextChar();
+                            if(c=='#'){
+                                nComments--;
+                                if(nComments==0){
+                                    state=WordState.ROOT;
+                                }
+                            }
                         }else if(c=='#'){
-                            state=WordState.LINE_COMMENT;
+                            c = reader.forceNextChar();
+                            if(c=='+'){
+                                nComments++;
+                            }else if(c=='#'){
+                                state=WordState.LINE_COMMENT;
+                            }
                         }
-                    }
-                    break;
-                case LINE_COMMENT:
-                    if(c=='\n'||c=='\r'){
-                        state=nComments>0?WordState.COMMENT:WordState.ROOT;
-                    }
-                    break;
+                        break;
+                    case LINE_COMMENT:
+                        if(c=='\n'||c=='\r'){
+                            state=nComments>0?WordState.COMMENT:WordState.ROOT;
+                        }
+                        break;
+                }
             }
-        }
-        switch (state){
-            case ROOT->{
-                finishWord(reader.buffer.toString(), pState,reader.currentPos());
-                reader.nextToken();
+            switch (state){
+                case ROOT->{
+                    reader.addWord(words);
+                    reader.nextToken();
+                }
+                case LINE_COMMENT ->{} //do nothing
+                case STRING,UNICODE_STRING ->throw new SyntaxError("unfinished string", reader.currentPos());
+                case COMMENT -> throw new SyntaxError("unfinished comment", reader.currentPos());
             }
-            case LINE_COMMENT ->{} //do nothing
-            case STRING,UNICODE_STRING ->throw new SyntaxError("unfinished string", reader.currentPos());
-            case COMMENT -> throw new SyntaxError("unfinished comment", reader.currentPos());
+        }catch (SyntaxError e){
+            return new LexedFile(fileId,words,reader.currentPos(),e);
         }
-        finishParsing(pState, reader.currentPos());
+        return new LexedFile(fileId,words,reader.currentPos(),null);
+    }
+
+    public static Program parse(File file, ParserState pState, IOContext ioContext) throws IOException, SyntaxError {
+        String path=file.getAbsolutePath();
+        byte[] content;
+        try {
+            content=Files.readAllBytes(file.toPath());
+        } catch (NoSuchFileException e) {
+            throw new SyntaxError("File not found: "+path,new FilePosition("???",path,0,0));
+        }
+        LexedFile lexed=lex(path,content);
+        if(lexed.fileId()==null){
+            throw lexed.error();
+        }
+        String fileId=lexed.fileId();
+        if(pState==null){
+            pState=new ParserState(ioContext, new RootContext());
+        }else if(pState.files.contains(fileId)){
+            //TODO detect if file was already included through different path
+            return new Program(pState.globalCode,pState.files,pState.rootContext);
+        }
+        //ensure that each file is included only once
+        pState.files.add(fileId);
+
+        pState.startFile(fileId);
+
+        for(StringWithPos word:lexed.words()){
+            finishWord(word.str(),pState,word.start());
+        }
+        if(lexed.error()!=null){
+            throw lexed.error();
+        }
+        finishParsing(pState, lexed.end());
         Declareable main=pState.topLevelContext().getDeclareable("main");
         if(main instanceof Value.Procedure){
             typeCheckProcedure((Value.Procedure) main,pState.globalConstants,pState.variables,pState.ioContext);
@@ -2048,7 +2161,7 @@ public class Parser {
             throw new SyntaxError("unclosed block: "+pState.openBlocks.getLast(),pState.openBlocks.getLast().startPos);
         }
 
-        pState.endFile(reader.currentPos());
+        pState.endFile(lexed.end());
 
         return new Program(pState.globalCode,pState.files,pState.rootContext);
     }
@@ -2399,17 +2512,17 @@ public class Parser {
         try{
             if (tryParseInt(pState.uncheckedCode, str,pos)) {
                 return true;
-            }else if(floatDec.matcher(str).matches()){
+            }else if(str.equals("NaN")||str.equals("Infinity")||isFloatLiteral(str,"",10,"Ee")){
                 //dez-Float
                 double d = Double.parseDouble(str);
                 pState.uncheckedCode.add(new ValueToken(Value.ofFloat(d), pos));
                 return true;
-            }else if(floatBin.matcher(str).matches()){
+            }else if(isFloatLiteral(str,BIN_PREFIX,2,"EePpXx#")){
                 //bin-Float
                 double d= Value.parseFloat(str.substring(BIN_PREFIX.length()),2);
                 pState.uncheckedCode.add(new ValueToken(Value.ofFloat(d), pos));
                 return true;
-            }else if(floatHex.matcher(str).matches()){
+            }else if(isFloatLiteral(str,HEX_PREFIX,16,"PpXx#")){
                 //hex-Float
                 double d=Value.parseFloat(str.substring(BIN_PREFIX.length()),16);
                 pState.uncheckedCode.add(new ValueToken(Value.ofFloat(d), pos));
@@ -3718,6 +3831,7 @@ public class Parser {
                         if (type == null) {
                             type = Type.ANY;
                         }
+                        Type[] elementTypes = tState.typeStack.asList().stream().map(f -> f.type).toArray(Type[]::new);
                         tState.typeStack = ((ArrayBlock) open).prevTypes;
                         List<Token> subList = ret.subList(open.start, ret.size());
                         ArrayList<Value> values = new ArrayList<>(subList.size());
@@ -3750,7 +3864,7 @@ public class Parser {
 
                             ArrayList<Token> listTokens = new ArrayList<>(subList);
                             subList.clear();
-                            ret.add(new ArrayCreatorToken(listTokens, pos));
+                            ret.add(new ArrayCreatorToken(listTokens, type, elementTypes, pos));
                         }
                     }
                     case IF -> {
@@ -4050,10 +4164,21 @@ public class Parser {
         }
         //TODO update valueInfo
         tState.typeStack.push(new TypeFrame(f.type.content(),f.valueInfo,f.pushedAt));
-        tState.ret.add(new TypedToken(TokenType.DEREFERENCE,f.type.content(), t.pos));
+        Token prev=tState.ret.isEmpty()?null:tState.ret.get(tState.ret.size()-1);
+        if(prev==null||f.pushedAt!=prev.pos){//reference was not created by the previous token
+            tState.ret.add(new TypedToken(TokenType.DEREFERENCE,f.type.content(), t.pos));
+        }else if(prev instanceof VariableToken var&&var.accessType==AccessType.REFERENCE_TO){//reference does not escape
+            removeVariableReference(var);
+            tState.ret.set(tState.ret.size()-1,new VariableToken(var.pos,var.variableName,var.id,AccessType.READ,tState.context));
+        }else if(prev instanceof TupleElementAccess access&&prev.tokenType==TokenType.TUPLE_REFERENCE_TO){
+            tState.ret.set(tState.ret.size()-1,new TupleElementAccess(access.tupleType,access.index,false,access.pos));
+        }else{
+            tState.ret.add(new TypedToken(TokenType.DEREFERENCE,f.type.content(), t.pos));
+        }
     }
     private static void typeCheckAssign(TypeCheckState tState, Token t) throws RandomAccessStack.StackUnderflow, SyntaxError {
-        Type target= tState.typeStack.pop().type;
+        TypeFrame f= tState.typeStack.pop();
+        Type target= f.type;
         if(!target.isReference()){
             throw new SyntaxError("unexpected target-type for assign:"+target, t.pos);
         }
@@ -4061,8 +4186,25 @@ public class Parser {
             throw new SyntaxError("cannot assign value to non-mutable reference:"+target, t.pos);
         }
         Type src= tState.typeStack.pop().type;
+        Token prev=tState.ret.isEmpty()?null:tState.ret.get(tState.ret.size()-1);
         typeCheckCast(src,2,target.content(), tState, t.pos);
-        tState.ret.add(new TypedToken(TokenType.ASSIGN,target.content(), t.pos));
+        if(prev==null||f.pushedAt!=prev.pos||tState.ret.get(tState.ret.size()-1)!=prev){
+            //reference was not created by the previous token or value was cast after creating the reference
+            tState.ret.add(new TypedToken(TokenType.ASSIGN,target.content(), t.pos));
+        }else if(prev instanceof VariableToken var&&var.accessType==AccessType.REFERENCE_TO&&
+                var.variableType!=VariableType.CURRIED){
+            removeVariableReference(var);
+            tState.ret.set(tState.ret.size()-1,new VariableToken(var.pos,var.variableName,var.id,AccessType.WRITE,tState.context));
+        }else if(prev instanceof TupleElementAccess access&&prev.tokenType==TokenType.TUPLE_REFERENCE_TO){
+            tState.ret.set(tState.ret.size()-1,new TupleElementAccess(access.tupleType,access.index,access.pos));
+        }else{
+            tState.ret.add(new TypedToken(TokenType.ASSIGN,target.content(), t.pos));
+        }
+    }
+    private static void removeVariableReference(VariableToken var){
+        if(var.variableType==VariableType.LOCAL){
+            var.id.context.procedureContext().variableReferences--;
+        }
     }
 
 
@@ -4879,9 +5021,9 @@ public class Parser {
                 bounds=new Type.BoundMaps();
                 if(c.type().canAssignTo(target,bounds)){//TODO allow casts
                     if(c instanceof GenericProcedure){
-                        assert bounds.r.size()==0;
-                        IdentityHashMap<Type.GenericParameter,Type> update=new IdentityHashMap<>(bounds.l.size());
-                        for(Map.Entry<Type.GenericParameter, Type.GenericBound> e:bounds.l.entrySet()){
+                        assert bounds.r().size()==0;
+                        IdentityHashMap<Type.GenericParameter,Type> update=new IdentityHashMap<>(bounds.l().size());
+                        for(Map.Entry<Type.GenericParameter, Type.GenericBound> e:bounds.l().entrySet()){
                             if(e.getValue().min()!=null){
                                 if(e.getValue().max()==null||e.getValue().min().canAssignTo(e.getValue().max())){
                                     update.put(e.getKey(),e.getValue().min());
@@ -4937,7 +5079,7 @@ public class Parser {
                     tState.ret.add(new ArgCastToken(stackPos, src, target, pos));
                 }
             }
-            if(bounds.l.size()>0||bounds.r.size()>0){
+            if(bounds.l().size()>0||bounds.r().size()>0){
                 //generics only exist in Tuple/Struct/Procedures concrete values should not contain any generic information
                 throw new RuntimeException("generics should not exist here");
             }
@@ -4964,7 +5106,7 @@ public class Parser {
                         ": "+Arrays.toString(inTypes),pos);
             }
         }
-        if(bounds.l.size()>0||bounds.r.size()>0){
+        if(bounds.l().size()>0||bounds.r().size()>0){
             //generics only exist in Tuple/Struct/Procedures concrete values should not contain any generic information
             throw new RuntimeException("generics should not exist here");
         }
@@ -5078,11 +5220,22 @@ public class Parser {
         for(int i=inTypes.length-1;i>=0;i--){
             inTypes[i]=tState.typeStack.pop().type;
         }
-        ArrayList<CallMatch> matchingCalls=new ArrayList<>();
-        for(Callable p1:proc.procedures){
-            typeCheckPotentialCall(p1, typeArgs, inTypes, matchingCalls, pos,tState);
+        //calls with type arguments or overloaded procedure pointers depend on more than the argument types
+        boolean cacheable=typeArgs==null;
+        for(int i=0;cacheable&&i<inTypes.length;i++){
+            cacheable=!(inTypes[i] instanceof Type.OverloadedProcedurePointer);
+        }
+        CallMatch match=cacheable?TypeQueryCache.getCall(proc,inTypes):null;
+        if(match==null){
+            ArrayList<CallMatch> matchingCalls=new ArrayList<>();
+            for(Callable p1:proc.candidates(inTypes)){
+                typeCheckPotentialCall(p1, typeArgs, inTypes, matchingCalls, pos,tState);
+            }
+            match = findMatchingCall(matchingCalls, proc, inTypes, pos,tState);
+            if(cacheable){
+                TypeQueryCache.putCall(proc,inTypes,match);
+            }
         }
-        CallMatch match = findMatchingCall(matchingCalls, proc, inTypes, pos,tState);
         updateProcedureArguments(match, inTypes, tState.ret, ptrGenArgs!=null, pos);
         for(Type t:match.type.outTypes){
             tState.typeStack.push(new TypeFrame(t,new ValueInfo(OwnerInfo.STACK),pos));
@@ -5109,8 +5262,8 @@ public class Parser {
         for(int i = 0; isMatch&&i< inTypes.length; i++){
             if(inTypes[i] instanceof Type.OverloadedProcedurePointer){
                 hasOpp=true;
-            }else if(!inTypes[i].canAssignTo(type.inTypes[i],bounds)){
-                paramMatchTypes[i]=inTypes[i].canCastTo(type.inTypes[i],bounds);
+            }else{
+                paramMatchTypes[i]=TypeQueryCache.castType(inTypes[i],type.inTypes[i],bounds);
                 switch (paramMatchTypes[i]){
                     case ASSIGN,CONVERT -> {}//do nothing
                     case CAST -> nCasts++;
@@ -5132,11 +5285,11 @@ public class Parser {
             }
         }
         if(isMatch){
-            if(bounds.r.size()>0){
-                assert bounds.l.size()==0;
-                nImplicit=bounds.r.size();
+            if(bounds.r().size()>0){
+                assert bounds.l().size()==0;
+                nImplicit=bounds.r().size();
                 IdentityHashMap<Type.GenericParameter,Type> implicitGenerics=new IdentityHashMap<>();
-                isMatch = resolveGenericParams(bounds.r, implicitGenerics);
+                isMatch = resolveGenericParams(bounds.r(), implicitGenerics);
                 type=type.replaceGenerics(implicitGenerics);
                 generics.putAll(implicitGenerics);
             }//no else
@@ -5166,12 +5319,12 @@ public class Parser {
             Type.BoundMaps test= callBounds.copy();
             if(procType.canAssignTo(calledType,test)){
                 IdentityHashMap<Type.GenericParameter,Type> implicitGenerics=new IdentityHashMap<>();
-                if(test.l.size()>0){
-                    IdentityHashMap<Type.GenericParameter, Type.GenericBound> l = test.l;
+                if(test.l().size()>0){
+                    IdentityHashMap<Type.GenericParameter, Type.GenericBound> l = test.l();
                     matchesParam = resolveGenericParams(l, implicitGenerics);
                     l.clear();//generic parameters have been processed
                     //update generics in generic parameters
-                    for(Map.Entry<Type.GenericParameter, Type.GenericBound> p:test.r.entrySet()){
+                    for(Map.Entry<Type.GenericParameter, Type.GenericBound> p:test.r().entrySet()){
                         Type min = p.getValue().min();
                         Type max = p.getValue().max();
                         p.setValue(new Type.GenericBound(min==null?null:min.replaceGenerics(implicitGenerics),
@@ -5183,7 +5336,7 @@ public class Parser {
                     }
                 }
                 //check rBounds
-                for(Type.GenericBound b:test.r.values()){
+                for(Type.GenericBound b:test.r().values()){
                     if(b.min()!=null&&b.max()!=null&&!b.min().canAssignTo(b.max())){
                         matchesParam=false;
                         break;
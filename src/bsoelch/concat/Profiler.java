@@ -0,0 +1,182 @@
+package bsoelch.concat;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * Profiler for Concat programs (enabled with the -profile option of the interpreter),
+ * counts the calls and measures the inclusive and exclusive time of each called procedure
+ * and periodically samples the current call-chain from a background thread,
+ * calls of internal procedures are only counted, their time is attributed to the calling procedure
+ */
+final class Profiler {
+    static final int DEFAULT_SAMPLE_INTERVAL_MILLIS = 2;
+
+    private static final class Entry{
+        final Parser.Callable called;
+        long calls;
+        long inclusiveNanos;
+        long exclusiveNanos;
+        /**number of samples in which this procedure was the innermost procedure*/
+        long selfSamples;
+        /**number of active calls of this procedure, inclusive time is only counted for the outermost call*/
+        int active;
+        Entry(Parser.Callable called) {
+            this.called = called;
+        }
+        String name(){
+            return called.name()+" ("+called.declaredAt()+")";
+        }
+    }
+    private final IdentityHashMap<Parser.Callable,Entry> entries=new IdentityHashMap<>();
+    private Entry[] stack=new Entry[64];
+    private long[] startTimes=new long[64];
+    private long[] childNanos=new long[64];
+    /**current call-depth, written by the interpreter thread and read by the sampler*/
+    private volatile int depth;
+
+    /**number of samples for each call chain, only accessed by the sampler thread while it is running*/
+    private final HashMap<List<Entry>,Long> samples=new HashMap<>();
+    private long sampleCount;
+    private final Thread sampler;
+    private volatile boolean running;
+
+    Profiler(int sampleIntervalMillis){
+        sampler=new Thread(()->{
+            while(running){
+                try {
+                    //noinspection BusyWait
+                    Thread.sleep(sampleIntervalMillis);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                sample();
+            }
+        },"concat-profiler");
+        sampler.setDaemon(true);
+    }
+
+    void start(){
+        running=true;
+        sampler.start();
+    }
+    /**stops the sampler and closes all procedures that are still running*/
+    void stop(){
+        running=false;
+        sampler.interrupt();
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        while(depth>0){
+            exit();
+        }
+    }
+
+    private Entry entry(Parser.Callable called){
+        Entry e=entries.get(called);
+        if(e==null){
+            e=new Entry(called);
+            entries.put(called,e);
+        }
+        return e;
+    }
+    /**counts a call of an internal procedure without measuring its time*/
+    void count(Parser.Callable called){
+        entry(called).calls++;
+    }
+    void enter(Parser.Callable called){
+        Entry e=entry(called);
+        int d=depth;
+        if(d==stack.length){
+            startTimes=Arrays.copyOf(startTimes,2*d);
+            childNanos=Arrays.copyOf(childNanos,2*d);
+            stack=Arrays.copyOf(stack,2*d);
+        }
+        e.calls++;
+        e.active++;
+        stack[d]=e;
+        childNanos[d]=0;
+        startTimes[d]=System.nanoTime();
+        depth=d+1;
+    }
+    void exit(){
+        long time=System.nanoTime();
+        int d=depth-1;
+        Entry e=stack[d];
+        long inclusive=time-startTimes[d];
+        e.exclusiveNanos+=inclusive-childNanos[d];
+        if(--e.active==0){
+            e.inclusiveNanos+=inclusive;
+        }
+        if(d>0){
+            childNanos[d-1]+=inclusive;
+        }
+        depth=d;
+    }
+
+    /**records the current call-chain, the stack is read without synchronization,
+     * so a sample may be inaccurate if the interpreter enters or exits a procedure at the same time*/
+    private void sample(){
+        Entry[] s=stack;
+        int d=Math.min(depth,s.length);
+        ArrayList<Entry> chain=new ArrayList<>(d);
+        for(int i=0;i<d;i++){
+            if(s[i]!=null){
+                chain.add(s[i]);
+            }
+        }
+        if(!chain.isEmpty()){
+            chain.get(chain.size()-1).selfSamples++;
+        }
+        samples.merge(chain,1L,Long::sum);
+        sampleCount++;
+    }
+
+    /**writes the call statistics ordered by exclusive time,
+     * instances of generic procedures are merged with the procedure they were created from*/
+    void writeReport(PrintWriter out){
+        LinkedHashMap<String,long[]> merged=new LinkedHashMap<>();
+        for(Entry e:entries.values()){
+            long[] data=merged.computeIfAbsent(e.name(),k->new long[4]);
+            data[0]+=e.calls;
+            data[1]+=e.inclusiveNanos;
+            data[2]+=e.exclusiveNanos;
+            data[3]+=e.selfSamples;
+        }
+        ArrayList<Map.Entry<String,long[]>> sorted=new ArrayList<>(merged.entrySet());
+        sorted.sort(Comparator.comparingLong((Map.Entry<String,long[]> e)->e.getValue()[2]).reversed());
+        out.printf("%12s %14s %14s %10s  %s%n","calls","inclusive ms","exclusive ms","samples","procedure");
+        for(Map.Entry<String,long[]> e:sorted){
+            long[] data=e.getValue();
+            out.printf("%12d %14.3f %14.3f %10d  %s%n",data[0],data[1]/1e6,data[2]/1e6,data[3],e.getKey());
+        }
+        out.printf("%d samples%n",sampleCount);
+    }
+    /**writes the sampled call-chains in the collapsed stack format used by flame graph tools*/
+    void writeCollapsedStacks(PrintWriter out){
+        TreeMap<String,Long> merged=new TreeMap<>();
+        for(Map.Entry<List<Entry>,Long> e:samples.entrySet()){
+            StringBuilder chain=new StringBuilder("<root>");
+            for(Entry frame:e.getKey()){
+                chain.append(';').append(frame.name().replace(';',','));
+            }
+            merged.merge(chain.toString(),e.getValue(),Long::sum);
+        }
+        for(Map.Entry<String,Long> e:merged.entrySet()){
+            out.println(e.getKey()+" "+e.getValue());
+        }
+    }
+    /**writes the report to path.txt and the collapsed stacks to path.collapsed*/
+    void write(String path) throws IOException {
+        try(PrintWriter out=new PrintWriter(new FileWriter(path+".txt"))){
+            writeReport(out);
+        }
+        try(PrintWriter out=new PrintWriter(new FileWriter(path+".collapsed"))){
+            writeCollapsedStacks(out);
+        }
+    }
+}
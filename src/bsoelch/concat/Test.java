@@ -1,11 +1,50 @@
 package bsoelch.concat;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 public class Test {//TODO add a new test for array access operations
 
+    /**runs the program at path with the default engine and writes its output to out and err,
+     * then runs it with all other engines and reports the engines that produce a different output*/
+    private static Parser.Program runAllEngines(String path,PrintStream out,PrintStream err) throws IOException {
+        Interpreter.Engine defaultEngine=Interpreter.defaultEngine;
+        ByteArrayOutputStream refOut=new ByteArrayOutputStream();
+        ByteArrayOutputStream refErr=new ByteArrayOutputStream();
+        Parser.Program program=run(path,refOut,refErr);
+        out.write(refOut.toByteArray());
+        err.write(refErr.toByteArray());
+        try {
+            for(Interpreter.Engine engine:Interpreter.Engine.values()){
+                if(engine==defaultEngine){
+                    continue;
+                }
+                Interpreter.defaultEngine=engine;
+                ByteArrayOutputStream engineOut=new ByteArrayOutputStream();
+                ByteArrayOutputStream engineErr=new ByteArrayOutputStream();
+                run(path,engineOut,engineErr);
+                if(!(Arrays.equals(refOut.toByteArray(),engineOut.toByteArray())&&
+                        Arrays.equals(refErr.toByteArray(),engineErr.toByteArray()))){
+                    System.err.println("output of engine "+engine+" differs from "+defaultEngine+" for: \""+path+"\"");
+                }
+            }
+        }finally {
+            Interpreter.defaultEngine=defaultEngine;
+        }
+        return program;
+    }
+    private static Parser.Program run(String path,ByteArrayOutputStream out,ByteArrayOutputStream err) throws IOException {
+        PrintStream outStream=new PrintStream(out);
+        PrintStream errStream=new PrintStream(err);
+        Parser.Program program=Interpreter.compileAndRun(path,new String[]{System.getProperty("user.dir")},
+                new IOContext(System.in,outStream,errStream));
+        outStream.flush();
+        errStream.flush();
+        return program;
+    }
+
     public static void main(String[] args) throws IOException {
         //TODO add tests for all internal procedures
         String testPath=System.getProperty("user.dir")+"/tests/";
@@ -16,7 +55,6 @@ public class Test {//TODO add a new test for array access operations
         File[] files=lib.listFiles();
         PrintStream out;
         PrintStream err;
-        IOContext context;
         BufferedWriter includeAll = new BufferedWriter(new FileWriter(testPath+"autoGen.includeAll.concat"));
         includeAll.write("test/includeAll :");
         includeAll.newLine();
@@ -32,9 +70,7 @@ public class Test {//TODO add a new test for array access operations
                     err.println(name+":");
                     includeAll.write(name+" #include");
                     includeAll.newLine();
-                    context=new IOContext(System.in,out,err);
-                    libraryFiles.put(file.getName(),
-                            Interpreter.compileAndRun(path,new String[]{System.getProperty("user.dir")},context));
+                    libraryFiles.put(file.getName(),runAllEngines(path,out,err));
                 }else if(!file.getName().equals("native.jar")){//ignore native code extensions
                     System.err.println("non-concat lib file:"+path);
                 }
@@ -52,9 +88,7 @@ public class Test {//TODO add a new test for array access operations
                     String reducedPath = path.substring(0, path.length() - Parser.DEFAULT_FILE_EXTENSION.length());
                     out=new PrintStream(new FileOutputStream(reducedPath +".out.txt"));
                     err=new PrintStream(new FileOutputStream(reducedPath +".err.txt"));
-                    context=new IOContext(System.in,out,err);
-                    Parser.Program testP =
-                            Interpreter.compileAndRun(path, new String[]{System.getProperty("user.dir")}, context);
+                    Parser.Program testP = runAllEngines(path,out,err);
                     if(testP!=null){
                         if(libFile.getValue()==null){
                             System.err.println("unable to build library file: "+file.getAbsolutePath());
@@ -120,9 +154,30 @@ public class Test {//TODO add a new test for array access operations
                     String reducedPath = path.substring(0, path.length() - Parser.DEFAULT_FILE_EXTENSION.length());
                     out=new PrintStream(new FileOutputStream(reducedPath +".out.txt"));
                     err=new PrintStream(new FileOutputStream(reducedPath +".err.txt"));
-                    context=new IOContext(System.in,out,err);
-                    Interpreter.compileAndRun(path,new String[]{System.getProperty("user.dir")},context);
+                    runAllEngines(path,out,err);
+                }
+            }
+        }else{
+            throw new IOException("unable to list files");
+        }
+        //run tests that depend on features of the bytecode engine (like unbounded recursion depth)
+        files=new File(testPath+"bytecode/").listFiles();
+        if(files!=null){
+            Interpreter.Engine defaultEngine=Interpreter.defaultEngine;
+            Interpreter.defaultEngine=Interpreter.Engine.BYTECODE;
+            try {
+                for(File file:files){
+                    String path=file.getAbsolutePath();
+                    if(path.endsWith(Parser.DEFAULT_FILE_EXTENSION)){
+                        String reducedPath = path.substring(0, path.length() - Parser.DEFAULT_FILE_EXTENSION.length());
+                        out=new PrintStream(new FileOutputStream(reducedPath +".out.txt"));
+                        err=new PrintStream(new FileOutputStream(reducedPath +".err.txt"));
+                        Interpreter.compileAndRun(path,new String[]{System.getProperty("user.dir")},
+                                new IOContext(System.in,out,err));
+                    }
                 }
+            }finally {
+                Interpreter.defaultEngine=defaultEngine;
             }
         }else{
             throw new IOException("unable to list files");
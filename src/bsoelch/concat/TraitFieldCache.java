@@ -0,0 +1,40 @@
+package bsoelch.concat;
+
+import java.util.Arrays;
+
+/**polymorphic inline cache for the trait field called at one call-site,
+ * the entries are dropped when a type gains a new trait implementation*/
+final class TraitFieldCache {
+    /**call-sites with more receiver types look up the trait field on each call*/
+    private static final int MAX_ENTRIES = 4;
+
+    final Type.TraitFieldPosition id;
+    private final Type[] types=new Type[MAX_ENTRIES];
+    private final Value.Procedure[] targets=new Value.Procedure[MAX_ENTRIES];
+    private int size;
+    private int generation=TypeQueryCache.generation;
+
+    TraitFieldCache(Type.TraitFieldPosition id) {
+        this.id = id;
+    }
+
+    Value.Procedure get(Type type){
+        if(generation!=TypeQueryCache.generation){
+            generation=TypeQueryCache.generation;
+            Arrays.fill(types,null);
+            Arrays.fill(targets,null);
+            size=0;
+        }
+        for(int i=0;i<size;i++){
+            if(types[i]==type){
+                return targets[i];
+            }
+        }
+        Value.Procedure target=type.getTraitField(id);
+        if(size<MAX_ENTRIES){
+            types[size]=type;
+            targets[size++]=target;
+        }
+        return target;
+    }
+}
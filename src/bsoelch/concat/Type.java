@@ -27,7 +27,7 @@ public class Type {
         }
 
         @Override
-        protected boolean equals(Type t, IdentityHashMap<GenericParameter, GenericParameter> generics) {
+        protected boolean equals(Type t, GenericPairs generics) {
             return t instanceof IntType&&((IntType) t).bits==bits&&((IntType) t).signed==signed;
         }
 
@@ -206,30 +206,78 @@ public class Type {
         return opt.get();
     }
 
+    /**bounds of the generic parameters on the left and right side of a type comparison,
+     * the maps are only created when a generic parameter is bound*/
     static class BoundMaps{
-        final IdentityHashMap<GenericParameter, GenericBound> l;
-        final IdentityHashMap<GenericParameter, GenericBound> r;
-        private BoundMaps(IdentityHashMap<GenericParameter, GenericBound> l,IdentityHashMap<GenericParameter, GenericBound> r){
-            this.l = l;
-            this.r = r;
+        private IdentityHashMap<GenericParameter, GenericBound> l;
+        private IdentityHashMap<GenericParameter, GenericBound> r;
+        /**the maps of a swapped view are stored in the BoundMaps it was created from*/
+        private final BoundMaps swappedOf;
+        private BoundMaps swapped;
+        private BoundMaps(BoundMaps swappedOf){
+            this.swappedOf = swappedOf;
+            this.swapped = swappedOf;
         }
         public BoundMaps(){
-            this(new IdentityHashMap<>(),new IdentityHashMap<>());
+            this(null);
+        }
+        IdentityHashMap<GenericParameter, GenericBound> l(){
+            if(swappedOf!=null){
+                return swappedOf.r();
+            }
+            if(l==null){
+                l=new IdentityHashMap<>();
+            }
+            return l;
+        }
+        IdentityHashMap<GenericParameter, GenericBound> r(){
+            if(swappedOf!=null){
+                return swappedOf.l();
+            }
+            if(r==null){
+                r=new IdentityHashMap<>();
+            }
+            return r;
+        }
+        private IdentityHashMap<GenericParameter, GenericBound> lOrNull(){
+            return swappedOf!=null?swappedOf.rOrNull():l;
+        }
+        private IdentityHashMap<GenericParameter, GenericBound> rOrNull(){
+            return swappedOf!=null?swappedOf.lOrNull():r;
+        }
+        boolean isEmpty(){
+            return (lOrNull()==null||lOrNull().isEmpty())&&(rOrNull()==null||rOrNull().isEmpty());
         }
         BoundMaps swapped(){
-            return new BoundMaps(r,l);
+            if(swapped==null){
+                swapped=new BoundMaps(this);
+            }
+            return swapped;
         }
 
         BoundMaps copy() {
+            BoundMaps copy=new BoundMaps();
             //noinspection unchecked
-            return new BoundMaps((IdentityHashMap<GenericParameter, GenericBound>) l.clone(),
-                    (IdentityHashMap<GenericParameter, GenericBound>) r.clone());
+            copy.l=lOrNull()==null?null:(IdentityHashMap<GenericParameter, GenericBound>) lOrNull().clone();
+            //noinspection unchecked
+            copy.r=rOrNull()==null?null:(IdentityHashMap<GenericParameter, GenericBound>) rOrNull().clone();
+            return copy;
+        }
+        /**adds all bounds of src to this BoundMaps*/
+        void putAll(BoundMaps src){
+            if(src.lOrNull()!=null){
+                l().putAll(src.lOrNull());
+            }
+            if(src.rOrNull()!=null){
+                r().putAll(src.rOrNull());
+            }
         }
     }
     public static void resetCached() {
         WrapperType.resetCached();
         Struct.resetCached();
         Tuple.resetCached();
+        TypeQueryCache.reset();
     }
 
     record GenericTraitImplementation(Trait trait, GenericParameter[] params, Value.Procedure[] values,
@@ -365,13 +413,29 @@ public class Type {
     }
     void forEachStruct(ThrowingConsumer<Struct,SyntaxError> action) throws SyntaxError{ }
 
+    /**pairs of generic parameters that are identified with each other in a type comparison,
+     * the map is only created when two different generic parameters are compared*/
+    static class GenericPairs{
+        private IdentityHashMap<GenericParameter,GenericParameter> pairs;
+        GenericParameter get(GenericParameter t){
+            return pairs==null?null:pairs.get(t);
+        }
+        void put(GenericParameter a,GenericParameter b){
+            if(pairs==null){
+                pairs=new IdentityHashMap<>();
+            }
+            pairs.put(a,b);
+            pairs.put(b,a);
+        }
+    }
+
     @Override
     public final boolean equals(Object o) {
         if (this == o) return true;
         if (!(o instanceof Type)) return false;
-        return equals((Type) o,new IdentityHashMap<>());
+        return equals((Type) o,new GenericPairs());
     }
-    protected boolean equals(Type t, IdentityHashMap<GenericParameter,GenericParameter> generics){
+    protected boolean equals(Type t, GenericPairs generics){
         return super.equals(t);
     }
 
@@ -384,7 +448,7 @@ public class Type {
 
     protected boolean canAssignTo(Type t, BoundMaps bounds){
         if(t instanceof GenericParameter){
-            GenericBound bound=bounds.r.get(t);
+            GenericBound bound=bounds.r().get(t);
             if(bound!=null){
                 if(bound.min==null||bound.min.canAssignTo(this,bounds.swapped())) {
                     bound=new GenericBound(this,bound.max);
@@ -398,7 +462,7 @@ public class Type {
             }else{
                 bound=new GenericBound(this,null);
             }
-            bounds.r.put((GenericParameter) t,bound);
+            bounds.r().put((GenericParameter) t,bound);
             return true;
         }else if(t instanceof UnionType){
             for(Type t1:((UnionType) t).elements){
@@ -419,8 +483,7 @@ public class Type {
             for(Trait implemented:implementedTraits.keySet()){
                 BoundMaps newBounds=bounds.copy();
                 if(implemented.setMutability(mutability).canAssignTo(trait, newBounds)){
-                    bounds.r.putAll(newBounds.r);
-                    bounds.l.putAll(newBounds.l);
+                    bounds.putAll(newBounds);
                     return true;
                 }
             }
@@ -581,6 +644,7 @@ public class Type {
         }
         implementedTraits.put(trait,impl);
         addInheritedTraits(impl, trait, 0);
+        TypeQueryCache.typesChanged();
     }
     private void addInheritedTraits(TraitImplementation baseImpl, Trait trait, int off) {
         for(Trait parent: trait.extended){
@@ -679,6 +743,7 @@ public class Type {
         return WrapperType.create(WrapperType.REFERENCE,contentType,Mutability.DEFAULT);
     }
 
+    /**types are interned by identity, the caches are not synchronized and are only accessed from the parser thread*/
     private static class WrapperType extends Type {
         static final HashMap<Type,WrapperType> arrays = new HashMap<>();
         static final HashMap<Type,WrapperType> memories = new HashMap<>();
@@ -802,17 +867,24 @@ public class Type {
                 case MEMORY -> {
                     addInternalField(new Value.InternalProcedure(new Type[]{this.maybeMutable()},
                             new Type[]{IntType.UINT}, "length", (values) ->
-                            new Value[]{Value.ofInt(((Value.ArrayLike) values[0]).length(), true)},false), declaredAt());
+                            new Value[]{Value.ofInt(((Value.ArrayLike) values[0]).length(), true)},false)
+                            .compileTo(gen->Compiler.getMemory(gen.assignPrimitive(1,IntType.UINT),1).append("->length")),
+                            declaredAt());
                     addInternalField(new Value.InternalProcedure(new Type[]{this.maybeMutable()},
                             new Type[]{IntType.UINT}, "capacity", (values) ->
-                            new Value[]{Value.ofInt(((Value.ArrayLike) values[0]).capacity(), true)},false), declaredAt());
+                            new Value[]{Value.ofInt(((Value.ArrayLike) values[0]).capacity(), true)},false)
+                            .compileTo(gen->Compiler.getMemory(Compiler.getMemory(gen.assignPrimitive(1,IntType.UINT),1)
+                                    .append("->size - "),1).append("->offset")), declaredAt());
                     addInternalField(new Value.InternalProcedure(new Type[]{this.maybeMutable()},
                             new Type[]{IntType.UINT}, "offset", (values) ->
-                            new Value[]{Value.ofInt(((Value.ArrayLike) values[0]).offset(), true)},false), declaredAt());
+                            new Value[]{Value.ofInt(((Value.ArrayLike) values[0]).offset(), true)},false)
+                            .compileTo(gen->Compiler.getMemory(gen.assignPrimitive(1,IntType.UINT),1).append("->offset")),
+                            declaredAt());
                 }
                 case ARRAY -> addInternalField(new Value.InternalProcedure(new Type[]{this.maybeMutable()},
                         new Type[]{IntType.UINT}, "length", (values) ->
-                        new Value[]{Value.ofInt(((Value.ArrayLike) values[0]).length(), true)},false), declaredAt());
+                        new Value[]{Value.ofInt(((Value.ArrayLike) values[0]).length(), true)},false)
+                        .compileTo(gen->gen.stackDrop(1,1)), declaredAt());
             }
         }
 
@@ -964,8 +1036,7 @@ public class Type {
                 BoundMaps newBounds=bounds.copy();
                 CastType castType = content().canCastTo(t, newBounds);
                 if(castType!=CastType.NONE){
-                    bounds.l.putAll(newBounds.l);
-                    bounds.r.putAll(newBounds.r);
+                    bounds.putAll(newBounds);
                     return castType==CastType.ASSIGN?CastType.CONVERT:castType;
                 }
             }
@@ -978,7 +1049,7 @@ public class Type {
         }
 
         @Override
-        protected boolean equals(Type t, IdentityHashMap<GenericParameter,GenericParameter> generics) {
+        protected boolean equals(Type t, GenericPairs generics) {
             if (this == t) return true;
             if (!(t instanceof WrapperType that)) return false;
             return content().equals(that.content(),generics) &&Mutability.isEqual(t.mutability,mutability)
@@ -1200,7 +1271,7 @@ public class Type {
         }
 
         @Override
-        protected boolean equals(Type t, IdentityHashMap<GenericParameter,GenericParameter> generics) {
+        protected boolean equals(Type t, GenericPairs generics) {
             if (this == t) return true;
             if (t.getClass()!=getClass())
                 return false;
@@ -1476,6 +1547,7 @@ public class Type {
             }
         }
         public void setFields(StructField[] fields,Type[] elements) {
+            TypeQueryCache.typesChanged();
             for(Type t:withMutability()){//update elements of all mutabilities
                 assert t instanceof Struct;
                 if(((Struct)t).elements==null){
@@ -1592,7 +1664,7 @@ public class Type {
         }
 
         @Override
-        protected boolean equals(Type t, IdentityHashMap<GenericParameter, GenericParameter> generics) {
+        protected boolean equals(Type t, GenericPairs generics) {
             if(!(t instanceof Struct))
                 return false;
             return ((Struct) t).declaredAt.equals(declaredAt)&&
@@ -1767,6 +1839,7 @@ public class Type {
             return traitFields!=null;
         }
         void setTraitFields(TraitField[] fields){
+            TypeQueryCache.typesChanged();
             for(Type t:withMutability()){//change for all mutabilities
                 assert t instanceof Trait;
                 ((Trait)t).traitFields=withExtended(fields);
@@ -1922,8 +1995,7 @@ public class Type {
                         BoundMaps tmp = bounds.copy();
                         CastType castType = ext.canCastTo(t, tmp);
                         if(castType!=CastType.NONE){
-                            bounds.l.putAll(tmp.l);
-                            bounds.r.putAll(tmp.r);
+                            bounds.putAll(tmp);
                             return castType;
                         }
                     }
@@ -1931,8 +2003,7 @@ public class Type {
                         BoundMaps tmp = bounds.copy();
                         CastType castType = canCastTo(ext,tmp);
                         if(castType!=CastType.NONE) {
-                            bounds.l.putAll(tmp.l);
-                            bounds.r.putAll(tmp.r);
+                            bounds.putAll(tmp);
                             return CastType.RESTRICT;
                         }
                     }
@@ -1952,7 +2023,7 @@ public class Type {
         }
 
         @Override
-        protected boolean equals(Type t, IdentityHashMap<GenericParameter, GenericParameter> generics) {
+        protected boolean equals(Type t, GenericPairs generics) {
             return t instanceof Trait&&((Trait) t).declaredAt.equals(declaredAt)&&
                     Arrays.equals(genericArgs,((Trait) t).genericArgs);
         }
@@ -2107,7 +2178,7 @@ public class Type {
         }
 
         @Override
-        protected boolean equals(Type t, IdentityHashMap<GenericParameter,GenericParameter> generics) {
+        protected boolean equals(Type t, GenericPairs generics) {
             if (this == t) return true;
             if ( ! (t instanceof Procedure proc)) return false;
             if(proc.inTypes.length!=inTypes.length||((Procedure) t).outTypes.length!=outTypes.length)
@@ -2228,7 +2299,7 @@ public class Type {
         }
 
         @Override
-        protected boolean equals(Type t, IdentityHashMap<GenericParameter,GenericParameter> generics) {
+        protected boolean equals(Type t, GenericPairs generics) {
             if((!(t instanceof GenericProcedureType))||((GenericProcedureType) t).explicitGenerics.length!= explicitGenerics.length)
                 return false;
             for(int i = 0; i< genericArgs.length; i++){//map generic parameters to their equivalents
@@ -2355,15 +2426,14 @@ public class Type {
         }
 
         @Override
-        protected boolean equals(Type t, IdentityHashMap<GenericParameter,GenericParameter> generics) {
+        protected boolean equals(Type t, GenericPairs generics) {
             if(this==t)
                 return true;
             if(t instanceof GenericParameter){
-                GenericParameter t1=generics.get(t);
+                GenericParameter t1=generics.get((GenericParameter)t);
                 GenericParameter this1=generics.get(this);
                 if(t1==null&&this1==null){
                     generics.put((GenericParameter)t,this);
-                    generics.put(this,(GenericParameter)t);
                     return true;
                 }
                 return this==t1||this1==t;
@@ -2375,11 +2445,11 @@ public class Type {
             if(this==t)
                 return true;
             if(t instanceof GenericParameter) {
-                GenericBound tBound=bounds.r.get((GenericParameter) t);
-                GenericBound mBound=bounds.l.get(this);
+                GenericBound tBound=bounds.r().get((GenericParameter) t);
+                GenericBound mBound=bounds.l().get(this);
                 if(tBound!=null){
                     if(mBound==null){
-                        bounds.l.put(this,tBound);
+                        bounds.l().put(this,tBound);
                     }else{
                         Type newMax;
                         if(tBound.max==null){
@@ -2398,19 +2468,19 @@ public class Type {
                             return false;
                         }
                         GenericBound commonBounds=new GenericBound(newMin.get(),newMax);
-                        bounds.r.put((GenericParameter) t,commonBounds);
-                        bounds.r.put((GenericParameter) t,commonBounds);
+                        bounds.r().put((GenericParameter) t,commonBounds);
+                        bounds.r().put((GenericParameter) t,commonBounds);
                     }
                 }else{
                     if(mBound==null){
                         throw new RuntimeException("comparison of two unbound generics");
                     }else{
-                        bounds.r.put((GenericParameter)t,mBound);
+                        bounds.r().put((GenericParameter)t,mBound);
                     }
                 }
                 return true;
             }
-            GenericBound bound=bounds.l.get(this);
+            GenericBound bound=bounds.l().get(this);
             if(bound!=null){
                 if(bound.min!=null&&!bound.min.canAssignTo(t,bounds)){
                     return false;
@@ -2422,7 +2492,7 @@ public class Type {
             }else{
                 bound=new GenericBound(null,t);
             }
-            bounds.l.put(this,bound);
+            bounds.l().put(this,bound);
             return true;
         }
 
@@ -2518,7 +2588,7 @@ public class Type {
         }
 
         @Override
-        protected boolean equals(Type t, IdentityHashMap<GenericParameter, GenericParameter> generics) {
+        protected boolean equals(Type t, GenericPairs generics) {
             if(!(t instanceof UnionType)||((UnionType) t).elements.length!=elements.length){
                 return false;
             }
@@ -2628,7 +2698,7 @@ public class Type {
         }
 
         @Override
-        protected boolean equals(Type t, IdentityHashMap<GenericParameter, GenericParameter> generics) {
+        protected boolean equals(Type t, GenericPairs generics) {
             return this==t;
         }
 
@@ -0,0 +1,114 @@
+package bsoelch.concat;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Per-program memoization of the type queries used in overload resolution,
+ * all entries are dropped when a type gains a trait or a struct/trait is initialized ({@link #typesChanged()}),
+ * the hit/miss counters are printed after parsing if the system property concat.typeCacheStats is true
+ */
+final class TypeQueryCache {
+    private TypeQueryCache(){}
+
+    static final boolean PRINT_STATS=Boolean.getBoolean("concat.typeCacheStats");
+
+    /**key comparing its elements by identity*/
+    private static final class IdentityKey{
+        final Object[] elements;
+        final int hash;
+        IdentityKey(Object... elements) {
+            this.elements = elements;
+            int h=elements.length;
+            for(Object o:elements){
+                h=31*h+System.identityHashCode(o);
+            }
+            hash=h;
+        }
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof IdentityKey key)||key.hash!=hash||key.elements.length!=elements.length)
+                return false;
+            for(int i=0;i<elements.length;i++){
+                if(elements[i]!=key.elements[i])
+                    return false;
+            }
+            return true;
+        }
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final HashMap<IdentityKey, Type.CastType> castTypes=new HashMap<>();
+    private static final HashMap<IdentityKey, Parser.CallMatch> callMatches=new HashMap<>();
+    /**canonical keys of the procedure lists of overloaded procedures*/
+    private static final HashMap<IdentityKey, IdentityKey> procedureSets=new HashMap<>();
+
+    static long castHits,castMisses;
+    static long callHits,callMisses;
+
+    static void reset(){
+        typesChanged();
+        procedureSets.clear();
+        castHits=castMisses=callHits=callMisses=0;
+    }
+    /**incremented each time the cached results are invalidated*/
+    static int generation;
+    static void typesChanged(){
+        generation++;
+        castTypes.clear();
+        callMatches.clear();
+    }
+
+    /**@return ASSIGN if from can be assigned to to, otherwise the result of from.canCastTo(to),
+     * results are only cached if the query does not bind generic parameters*/
+    static Type.CastType castType(Type from, Type to, Type.BoundMaps bounds){
+        if(!bounds.isEmpty()){
+            return from.canAssignTo(to,bounds)? Type.CastType.ASSIGN:from.canCastTo(to,bounds);
+        }
+        IdentityKey key=new IdentityKey(from,to);
+        Type.CastType res=castTypes.get(key);
+        if(res!=null){
+            castHits++;
+            return res;
+        }
+        castMisses++;
+        res=from.canAssignTo(to,bounds)? Type.CastType.ASSIGN:from.canCastTo(to,bounds);
+        if(bounds.isEmpty()){
+            castTypes.put(key,res);
+        }
+        return res;
+    }
+
+    /**@return the canonical key for the given list of procedures, equal lists share the same key*/
+    static Object procedureSet(List<Parser.Callable> procedures){
+        return procedureSets.computeIfAbsent(new IdentityKey(procedures.toArray()),k->k);
+    }
+    private static IdentityKey callKey(OverloadedProcedure proc,Type[] inTypes){
+        Object[] elements=new Object[inTypes.length+1];
+        elements[0]=proc.procedureSet();
+        System.arraycopy(inTypes,0,elements,1,inTypes.length);
+        return new IdentityKey(elements);
+    }
+    /**@return the call match for calling one of the procedures in proc with the given argument types
+     * or null if the call has not been resolved yet*/
+    static Parser.CallMatch getCall(OverloadedProcedure proc,Type[] inTypes){
+        Parser.CallMatch match=callMatches.get(callKey(proc,inTypes));
+        if(match!=null){
+            callHits++;
+        }else{
+            callMisses++;
+        }
+        return match;
+    }
+    static void putCall(OverloadedProcedure proc,Type[] inTypes,Parser.CallMatch match){
+        callMatches.put(callKey(proc,inTypes),match);
+    }
+
+    static String stats(){
+        return "cast queries: "+castHits+" hits "+castMisses+" misses, overloaded calls: "+
+                callHits+" hits "+callMisses+" misses";
+    }
+}
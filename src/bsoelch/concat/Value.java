@@ -2,11 +2,14 @@ package bsoelch.concat;
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.function.Function;
@@ -47,6 +50,10 @@ public abstract class Value {
     final Type type;
     protected Value(Type type) {
         this.type = type;
+        InterpreterMetrics metrics=InterpreterMetrics.current;
+        if(metrics!=null){
+            metrics.allocated(getClass());
+        }
     }
 
 
@@ -65,6 +72,10 @@ public abstract class Value {
     }
     /*updates mutable values form their raw data representation*/
     void updateFrom(Object nativeArg) throws ConcatRuntimeError {}
+    /**view of the elements of a byte array that shares the storage of this value*/
+    ByteBuffer byteBuffer() throws TypeError {
+        throw new TypeError("Cannot convert "+type+" to byte buffer");
+    }
 
     public boolean asBool() throws TypeError {
         throw new TypeError("Cannot convert "+type+" to bool");
@@ -152,7 +163,24 @@ public abstract class Value {
         return val;
     }
 
+    /**shared instances of small int and uint values,
+     * the cached range can be changed with the system properties concat.intCache.low and concat.intCache.high*/
+    private static final class IntCache{
+        static final long LOW =Integer.getInteger("concat.intCache.low",-1024);
+        static final long HIGH=Math.max(LOW-1,Integer.getInteger("concat.intCache.high",65535));
+        static final IntValue[] INTS=new IntValue[(int)(HIGH-LOW+1)];
+        static final IntValue[] UINTS=new IntValue[(int)(HIGH-LOW+1)];
+        static{
+            for(int i=0;i<INTS.length;i++){
+                INTS[i]=new IntValue(LOW+i,false);
+                UINTS[i]=new IntValue(LOW+i,true);
+            }
+        }
+    }
     public static Value ofInt(long intValue,boolean unsigned) {
+        if(intValue>=IntCache.LOW&&intValue<=IntCache.HIGH){
+            return (unsigned?IntCache.UINTS:IntCache.INTS)[(int)(intValue-IntCache.LOW)];
+        }
         return new IntValue(intValue,unsigned);
     }
     public static long parseInt(String source,int base,boolean unsigned) throws ConcatRuntimeError {
@@ -412,7 +440,19 @@ public abstract class Value {
         }
     }
 
+    /**shared instances of all Latin-1 codepoints*/
+    private static final class CodepointCache{
+        static final CodepointValue[] CHARS=new CodepointValue[256];
+        static{
+            for(int i=0;i<CHARS.length;i++){
+                CHARS[i]=new CodepointValue(i);
+            }
+        }
+    }
     public static Value ofChar(int codePoint) {
+        if(codePoint>=0&&codePoint<CodepointCache.CHARS.length){
+            return CodepointCache.CHARS[codePoint];
+        }
         return new CodepointValue(codePoint);
     }
     private static class CodepointValue extends Value{
@@ -481,8 +521,17 @@ public abstract class Value {
         }
     }
 
+    /**shared instances of all bytes*/
+    private static final class ByteCache{
+        static final ByteValue[] BYTES=new ByteValue[256];
+        static{
+            for(int i=0;i<BYTES.length;i++){
+                BYTES[i]=new ByteValue((byte)i);
+            }
+        }
+    }
     public static Value ofByte(byte aByte) {
-        return new ByteValue(aByte);
+        return ByteCache.BYTES[aByte&0xff];
     }
     private static class ByteValue extends Value{
         final byte byteValue;
@@ -551,21 +600,22 @@ public abstract class Value {
 
     public static Value ofString(String stringValue,boolean unicodeMode) {
         if(unicodeMode){
-            return createArray(Type.UNICODE_STRING(),stringValue.codePoints().mapToObj(Value::ofChar)
-                    .toArray(Value[]::new));
+            int[] codePoints=stringValue.codePoints().toArray();
+            CodepointArray array=new CodepointArray(Type.UNICODE_STRING(),codePoints);
+            array.length=codePoints.length;
+            return array;
         }else{
-            byte[] bytes = stringValue.getBytes(StandardCharsets.UTF_8);
-            Value[] wrapped=wrapBytes(bytes);
-            return createArray(Type.RAW_STRING(),wrapped);
+            return wrapBytes(Type.RAW_STRING(),stringValue.getBytes(StandardCharsets.UTF_8),0,-1);
         }
     }
 
-    private static Value[] wrapBytes(byte[] bytes) {
-        Value[] wrapped=new Value[bytes.length];
-        for(int i = 0; i< bytes.length; i++){
-            wrapped[i]=ofByte(bytes[i]);
-        }
-        return wrapped;
+    /**wraps the given bytes in an array of the given type without copying them
+     * @param length length of the array or -1 if the array contains all bytes*/
+    private static Value wrapBytes(Type type,byte[] bytes,int offset,int length) {
+        ByteArray array=new ByteArray(type,bytes);
+        array.offset=offset;
+        array.length=length<0?bytes.length:length;
+        return array;
     }
 
     public static Value createMemory(Type type,long initCap) throws ConcatRuntimeError {
@@ -574,7 +624,7 @@ public abstract class Value {
         }else if(initCap>Integer.MAX_VALUE){
             throw new ConcatRuntimeError("the maximum allowed capacity for arrays is "+Integer.MAX_VALUE);
         }
-        return new ArrayValue(type,(int)initCap);
+        return emptyArray(type,(int)initCap);
     }
     public static Value createArray(Type type,Value content,long initCap) throws ConcatRuntimeError {
         if(initCap<0){
@@ -582,12 +632,50 @@ public abstract class Value {
         }else if(initCap>Integer.MAX_VALUE){
             throw new ConcatRuntimeError("the maximum allowed capacity for arrays is "+Integer.MAX_VALUE);
         }
-        return new ArrayValue(type,content,(int)initCap);
+        ArrayValue array=emptyArray(type,(int)initCap);
+        array.fillData(0,(int)initCap,content);
+        array.length=(int)initCap;
+        return array;
     }
     public static ArrayValue createArray(Type type,Value[] data){
-        return new ArrayValue(type,data);
+        return createArray(type,data,0,data.length);
+    }
+    /**creates an array containing the elements of data between offset and offset+length,
+     * arrays with a primitive content type store their elements unboxed*/
+    private static ArrayValue createArray(Type type,Value[] data,int offset,int length){
+        ArrayValue array=primitiveArray(type,length);
+        if(array==null){
+            return new ObjectArray(type,data,offset,length);
+        }
+        try {
+            array.storeAll(data,offset,0,length);
+        } catch (TypeError e) {//elements do not match the content type
+            return new ObjectArray(type,data,offset,length);
+        }
+        array.length=length;
+        return array;
+    }
+    /**creates an empty array with the given capacity, the element storage is chosen based on the content type*/
+    private static ArrayValue emptyArray(Type type,int capacity){
+        ArrayValue array=primitiveArray(type,capacity);
+        return array!=null?array:new ObjectArray(type,new Value[capacity],0,0);
+    }
+    /**@return an empty array with unboxed storage of the given capacity or null if the content type is not primitive*/
+    private static ArrayValue primitiveArray(Type type,int capacity){
+        Type content=type.content();
+        if(content==Type.BYTE()){
+            return new ByteArray(type,new byte[capacity]);
+        }else if(content==Type.CODEPOINT()){
+            return new CodepointArray(type,new int[capacity]);
+        }else if(content==Type.INT()||content==Type.UINT()){
+            return new IntArray(type,new long[capacity]);
+        }else if(content==Type.FLOAT){
+            return new FloatArray(type,new double[capacity]);
+        }else if(content==Type.BOOL){
+            return new BoolArray(type,new boolean[capacity]);
+        }
+        return null;
     }
-    //addLater ByteArray,  other primitive arrays?
     interface ArrayLike{
         Type contentType();
         Value[] elements();
@@ -598,43 +686,48 @@ public abstract class Value {
         void set(long index,Value value) throws ConcatRuntimeError ;
         void append(Value val) throws ConcatRuntimeError;
         void prepend(Value val) throws ConcatRuntimeError;
-        void copyFrom(long offset,Value[] src,long srcOff,long length) throws ConcatRuntimeError;
-        void copyToSlice(long sliceStart,long sliceEnd,Value[] src, long srcOff, long length) throws ConcatRuntimeError;
+        void copyFrom(long offset,ArrayLike src,long srcOff,long length) throws ConcatRuntimeError;
+        void copyToSlice(long sliceStart,long sliceEnd,ArrayLike src, long srcOff, long length) throws ConcatRuntimeError;
         void fill(Value val,long offset,long count) throws ConcatRuntimeError;
         void clearSlice(long sliceStart,long sliceEnd) throws ConcatRuntimeError;
         void reallocate(long newSize) throws ConcatRuntimeError;
         void setOffset(long newOffset) throws ConcatRuntimeError;
     }
-    private static class ArrayValue extends Value implements ArrayLike{
-        Value[] data;
+    /**base class of all arrays and memories,
+     * the subclasses store the elements in a java array of the corresponding primitive type*/
+    private static abstract class ArrayValue extends Value implements ArrayLike{
         int offset;
         int length;
 
-        /**create and empty array with the given capacity*/
-        protected ArrayValue(Type type,int capacity) {
+        protected ArrayValue(Type type,int offset,int length) {
             super(type);
-            data=new Value[capacity];
-            offset=0;
-            length=0;
-        }
-        /**create an array with a specific data as values,
-         * it is assumed, that all elements of data are non-null*/
-        protected ArrayValue(Type type,Value[] data) {
-            this(type,data,0,data.length);
-        }
-        private ArrayValue(Type type,Value[] data,int offset,int length) {
-            super(type);
-            this.data=data;
             this.offset=offset;
             this.length=length;
         }
-        /**creates an array with the given lengths and fills it with the given initial value*/
-        protected ArrayValue(Type type,Value content,int capacity) {
-            super(type);
-            data=new Value[capacity];
-            Arrays.fill(data,content);
-            offset=0;
-            length=capacity;
+
+        /**size of the underlying data array*/
+        abstract int dataLength();
+        /**element at the given position of the underlying data array*/
+        abstract Value load(int i);
+        abstract void store(int i,Value val) throws TypeError;
+        /**moves count elements of the data array from src to target*/
+        abstract void move(int src,int target,int count);
+        abstract void fillData(int from,int to,Value val) throws TypeError;
+        /**replaces the data array with an array of the given size that contains the same initialized elements*/
+        abstract void resize(int newSize);
+        /**shallow copy of this array with the given type*/
+        abstract ArrayValue copy(Type newType);
+        void storeAll(Value[] src,int srcOff,int target,int count) throws TypeError {
+            for(int i=0;i<count;i++){
+                store(target+i,src[srcOff+i]);
+            }
+        }
+        /**copies count elements from src (starting at srcOff relative to the offset of src) to the data array,
+         * subclasses copy elements directly if src has the same storage type*/
+        void storeAll(ArrayValue src,int srcOff,int target,int count) throws TypeError {
+            for(int i=0;i<count;i++){
+                store(target+i,src.load(src.offset+srcOff+i));
+            }
         }
 
         @Override
@@ -647,18 +740,6 @@ public abstract class Value {
             return this==v;
         }
 
-        @Override
-        public Value replaceGenerics(IdentityHashMap<Type.GenericParameter, Type> genericParams) throws SyntaxError {
-            Type newType=type.replaceGenerics(genericParams);
-            boolean changed=newType!=type;
-            Value[] newData=new Value[data.length];
-            for(int i=0;i<length;i++){
-                newData[i+offset]=data[i+offset].replaceGenerics(genericParams);
-                changed|=data[i+offset]!=newData[i+offset];
-            }
-            return changed?this:new ArrayValue(newType,newData,offset,length);
-        }
-
         @Override
         public Value castTo(Type newType) throws ConcatRuntimeError {
             if (this.type.canAssignTo(newType)||
@@ -668,23 +749,15 @@ public abstract class Value {
                 Type newContent= newType.content();//addLater keep current capacity?
                 Value[] newValues=new Value[length];
                 for(int i=0;i<length;i++){
-                    newValues[i]=data[offset+i].castTo(newContent);
+                    newValues[i]=load(offset+i).castTo(newContent);
                 }
-                return new ArrayValue(newType,newValues);
+                return createArray(newType,newValues);
             }
             return super.castTo(newType);
         }
         @Override
         public Value clone(boolean deep,Type targetType) {
-            if(targetType==null)
-                targetType=type;
-            Value[] newData=data.clone();
-            if(deep){
-                for(int i=offset;i<offset+length;i++){
-                    newData[i]=data[i].clone(true,targetType.content());
-                }
-            }
-            return new ArrayValue(targetType,newData,offset,length);
+            return copy(targetType==null?type:targetType);
         }
 
         /*raw data of this Value as a standard java Object*/
@@ -692,13 +765,13 @@ public abstract class Value {
             if(argType.isArray()&&argType.content()==Type.BYTE()){
                 byte[] unpacked=new byte[length];
                 for(int i=0;i<length;i++){
-                    unpacked[i]=data[offset+i].asByte();
+                    unpacked[i]=load(offset+i).asByte();
                 }
                 return unpacked;
             }else if(argType.isMemory()&&argType.content()==Type.BYTE()){
-                byte[] unpacked=new byte[data.length];
+                byte[] unpacked=new byte[dataLength()];
                 for(int i=0;i<length;i++){
-                    unpacked[offset+i]=data[offset+i].asByte();
+                    unpacked[offset+i]=load(offset+i).asByte();
                 }
                 return new Object[]{unpacked,offset,length};
             }
@@ -708,14 +781,14 @@ public abstract class Value {
         void updateFrom(Object nativeArg) throws ConcatRuntimeError {
             if(nativeArg instanceof byte[] unpacked && (type.isArray()||type.isMemory())&&type.content()==Type.BYTE()){
                 for(int i=0;i<length;i++){
-                    data[offset+i]=ofByte(unpacked[i]);
+                    store(offset+i,ofByte(unpacked[i]));
                 }
             }else if(nativeArg instanceof Object[] nativeArgs && type.isMemory()&&type.content()==Type.BYTE()){
                 byte[] unpacked=(byte[])nativeArgs[0];
                 offset=(int)nativeArgs[1];
                 length=(int)nativeArgs[2];
                 for(int i=0;i<length;i++){
-                    data[offset+i]=ofByte(unpacked[i]);
+                    store(offset+i,ofByte(unpacked[i]));
                 }
             }else{
                 super.updateFrom(nativeArg);
@@ -724,7 +797,11 @@ public abstract class Value {
 
         @Override
         public Value[] elements(){
-            return Arrays.copyOfRange(data,offset,offset+length);
+            Value[] elements=new Value[length];
+            for(int i=0;i<length;i++){
+                elements[i]=load(offset+i);
+            }
+            return elements;
         }
 
         @Override
@@ -737,7 +814,7 @@ public abstract class Value {
             if(!type.isMemory()){
                 throw new RuntimeException("capacity is only supported for memories");
             }
-            return data.length-offset;
+            return dataLength()-offset;
         }
         @Override
         public int offset() {
@@ -752,24 +829,25 @@ public abstract class Value {
             if(index<0||index>= length){
                 throw new ConcatRuntimeError("Index out of bounds:"+index+" length:"+length);
             }
-            return data[offset+(int)index];
+            return load(offset+(int)index);
         }
         @Override
         public void set(long index,Value val) throws ConcatRuntimeError {
             if(index<0||index>= length){
                 throw new ConcatRuntimeError("Index out of bounds:"+index+" length:"+length);
             }
-            data[offset+(int)index]=val;
+            store(offset+(int)index,val);
         }
         @Override
         public void append(Value val) throws ConcatRuntimeError {
             if(!type.isMemory()){
                 throw new RuntimeException("append is only supported for memories");
             }
-            if(offset+length>=data.length){
+            if(offset+length>=dataLength()){
                 throw new ConcatRuntimeError("cannot append value, array reached upper boundary of memory");
             }
-            data[offset+(length++)]=val;
+            store(offset+length,val);
+            length++;
         }
 
         @Override
@@ -780,20 +858,22 @@ public abstract class Value {
             if(offset==0){
                 throw new ConcatRuntimeError("cannot prepend value, array reached lower boundary of memory");
             }
-            data[--offset]=val;
+            store(offset-1,val);
+            offset--;
             length++;
         }
 
         @Override
-        public void copyFrom(long offset,Value[] src, long srcOff,long count) throws ConcatRuntimeError {
-            if(srcOff<0||srcOff+count>src.length){
+        public void copyFrom(long offset,ArrayLike src, long srcOff,long count) throws ConcatRuntimeError {
+            if(srcOff<0||srcOff+count>src.length()){
                 throw new ConcatRuntimeError("invalid source offset for copy: "+srcOff+" offset has to be between "+0
-                        +" and "+(src.length-count));
+                        +" and "+(src.length()-count));
             }
+            int dataLength=dataLength();
             if(type.isMemory()){
-                if(offset<-this.offset||offset+count>data.length){
+                if(offset<-this.offset||offset+count>dataLength){
                     throw new ConcatRuntimeError("invalid offset for copy: "+offset+" offset has to be between "+(-this.offset)
-                            +" and "+(data.length-count)+" to fit the array into the allocated region");
+                            +" and "+(dataLength-count)+" to fit the array into the allocated region");
                 }//no else
                 if(length>0){//ensure there are no gaps in initialized memory
                     if(offset+count<0||offset>length){
@@ -807,7 +887,7 @@ public abstract class Value {
                             +" and "+(length-count));
                 }
             }
-            System.arraycopy(src,(int)srcOff,data,this.offset+(int)offset,(int)count);
+            storeAll((ArrayValue)src,(int)srcOff,this.offset+(int)offset,(int)count);
             if(type.isMemory()){
                 int prevOffset = this.offset;
                 this.offset=Math.min(prevOffset,this.offset+(int)offset);
@@ -818,7 +898,7 @@ public abstract class Value {
         /**inserts all elements in src into data overwriting (only) the elements between
          * index and index+sliceLength */
         @Override
-        public void copyToSlice(long sliceStart, long sliceEnd, Value[] src, long srcOff, long count) throws ConcatRuntimeError {
+        public void copyToSlice(long sliceStart, long sliceEnd, ArrayLike src, long srcOff, long count) throws ConcatRuntimeError {
             if(!type.isMemory()){
                 throw new RuntimeException("copyToSlice is only supported for memories");
             }
@@ -826,41 +906,42 @@ public abstract class Value {
                 throw new ConcatRuntimeError("invalid target slice for copyToSlice: "+ sliceStart +":"+sliceEnd+" length:"+length);
             }//no else
             long sliceLength=sliceEnd- sliceStart;
-            if(srcOff<0||srcOff+count-sliceLength>src.length){
+            if(srcOff<0||srcOff+count-sliceLength>src.length()){
                 throw new ConcatRuntimeError("invalid source offset for copyToSlice: "+srcOff+" offset has to be between "+0
-                        +" and "+(src.length-count+sliceLength));
+                        +" and "+(src.length()-count+sliceLength));
             }//no else
-            if(offset+length+count-sliceLength>data.length&&count-sliceLength>offset){
+            int dataLength=dataLength();
+            if(offset+length+count-sliceLength>dataLength&&count-sliceLength>offset){
                 throw new ConcatRuntimeError("invalid array length: "+count+
-                        " does not fit into available space: "+Math.max(data.length+sliceLength-(offset+length),offset+sliceLength));
+                        " does not fit into available space: "+Math.max(dataLength+sliceLength-(offset+length),offset+sliceLength));
             }
+            ArrayValue source=src==this?copy(type):(ArrayValue)src;//elements of this array are moved before they are copied
             if(sliceStart < length-(int)sliceEnd){
                 if(offset>=count){
-                    System.arraycopy(data,offset,data,offset-(int)count+(int)sliceLength,(int) sliceStart);
+                    move(offset,offset-(int)count+(int)sliceLength,(int) sliceStart);
                     offset+=sliceLength-count;
                 }else{
-                    System.arraycopy(data,offset+(int) sliceEnd,data,
-                            offset+(int)(sliceStart +count),length-(int)sliceEnd);
+                    move(offset+(int) sliceEnd,offset+(int)(sliceStart +count),length-(int)sliceEnd);
                 }
             }else{
-                if(offset+length+count-sliceLength<=data.length){
-                    System.arraycopy(data,offset+(int) sliceEnd,data,
-                            offset+(int)(sliceStart +count),length-(int)sliceEnd);
+                if(offset+length+count-sliceLength<=dataLength){
+                    move(offset+(int) sliceEnd,offset+(int)(sliceStart +count),length-(int)sliceEnd);
                 }else{
-                    System.arraycopy(data,offset,data,offset-(int)count+(int)sliceLength,(int) sliceStart);
+                    move(offset,offset-(int)count+(int)sliceLength,(int) sliceStart);
                     offset+=sliceLength-count;
                 }
             }
-            System.arraycopy(src,(int)srcOff,data,this.offset+(int) sliceStart,(int)count);
+            storeAll(source,(int)srcOff,this.offset+(int) sliceStart,(int)count);
             this.length+=count-sliceLength;
         }
 
         @Override
         public void fill(Value val, long offset, long count) throws ConcatRuntimeError {
+            int dataLength=dataLength();
             if(type.isMemory()){
-                if(offset<-this.offset||offset+count>data.length){
+                if(offset<-this.offset||offset+count>dataLength){
                     throw new ConcatRuntimeError("invalid offset for copy: "+offset+" offset has to be between "+(-this.offset)
-                            +" and "+(data.length-count)+" to fit the array into the allocated region");
+                            +" and "+(dataLength-count)+" to fit the array into the allocated region");
                 }//no else
                 if(length>0){//ensure there are no gaps in initialized memory
                     if(offset+count<0||offset>length){
@@ -875,7 +956,7 @@ public abstract class Value {
                 }
             }
             int fromIndex = this.offset + (int) offset;
-            Arrays.fill(data, fromIndex,fromIndex+(int)count,val);
+            fillData(fromIndex,fromIndex+(int)count,val);
             if(type.isMemory()){
                 int prevOffset = this.offset;
                 this.offset=Math.min(prevOffset,this.offset+(int)offset);
@@ -892,11 +973,10 @@ public abstract class Value {
             }//no else
             long sliceLength=sliceEnd- sliceStart;
             if(sliceStart < length-(int)sliceEnd){
-                System.arraycopy(data,offset,data,offset+(int)sliceLength,(int) sliceStart);
+                move(offset,offset+(int)sliceLength,(int) sliceStart);
                 offset+=sliceLength;
             }else{
-                System.arraycopy(data,offset+(int) sliceEnd,data,offset+(int)sliceStart,
-                        length-(int)sliceEnd);
+                move(offset+(int) sliceEnd,offset+(int)sliceStart,length-(int)sliceEnd);
             }
             this.length-=sliceLength;
         }
@@ -911,19 +991,17 @@ public abstract class Value {
                 throw new ConcatRuntimeError("newSize "+newSize+" outside allowed range: "+
                         (offset+length)+" to "+Integer.MAX_VALUE);
             }
-            Value[] newData=new Value[(int)newSize];
-            System.arraycopy(data,offset,newData,offset,length);
-            data=newData;
+            resize((int)newSize);
         }
         @Override
         public void setOffset(long newOffset) throws ConcatRuntimeError {
             if(!type.isMemory()){
                 throw new RuntimeException("move is only supported for memories");
             }
-            if(newOffset<0||newOffset+length> data.length){
-                throw new ConcatRuntimeError("offset "+newOffset+" outside allowed range: 0 to "+(data.length-length));
+            if(newOffset<0||newOffset+length> dataLength()){
+                throw new ConcatRuntimeError("offset "+newOffset+" outside allowed range: 0 to "+(dataLength()-length));
             }
-            System.arraycopy(data,offset,data,(int)newOffset,length);
+            move(offset,(int)newOffset,length);
             offset=(int)newOffset;
         }
 
@@ -938,7 +1016,7 @@ public abstract class Value {
             }else if(type.content()==Type.CODEPOINT()){
                 StringBuilder str=new StringBuilder();
                 for(int i=offset;i<offset+length;i++){
-                    int aChar = ((CodepointValue) data[i]).getChar();
+                    int aChar = ((CodepointValue) load(i)).getChar();
                     if(aChar>=0&&aChar<Character.MAX_CODE_POINT){
                         str.append(Character.toChars(aChar));
                     }else{
@@ -953,8 +1031,7 @@ public abstract class Value {
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            ArrayValue that = (ArrayValue) o;
+            if (!(o instanceof ArrayValue that)) return false;
             return length == that.length && Arrays.equals(elements(), that.elements());
         }
 
@@ -965,7 +1042,449 @@ public abstract class Value {
             return result;
         }
     }
+    private static final class ObjectArray extends ArrayValue{
+        Value[] data;
+        /**create an array with a specific data as values,
+         * it is assumed, that all elements of data between offset and offset+length are non-null*/
+        private ObjectArray(Type type,Value[] data,int offset,int length) {
+            super(type,offset,length);
+            this.data=data;
+        }
+
+        @Override
+        int dataLength() {
+            return data.length;
+        }
+        @Override
+        Value load(int i) {
+            return data[i];
+        }
+        @Override
+        void store(int i, Value val) {
+            data[i]=val;
+        }
+        @Override
+        void move(int src, int target, int count) {
+            System.arraycopy(data,src,data,target,count);
+        }
+        @Override
+        void fillData(int from, int to, Value val) {
+            Arrays.fill(data,from,to,val);
+        }
+        @Override
+        void storeAll(Value[] src, int srcOff, int target, int count) {
+            System.arraycopy(src,srcOff,data,target,count);
+        }
+        @Override
+        void storeAll(ArrayValue src, int srcOff, int target, int count) throws TypeError {
+            if(src instanceof ObjectArray objects){
+                System.arraycopy(objects.data,src.offset+srcOff,data,target,count);
+            }else{
+                super.storeAll(src, srcOff, target, count);
+            }
+        }
+        @Override
+        void resize(int newSize) {
+            Value[] newData=new Value[newSize];
+            System.arraycopy(data,offset,newData,offset,length);
+            data=newData;
+        }
+        @Override
+        ArrayValue copy(Type newType) {
+            return new ObjectArray(newType,data.clone(),offset,length);
+        }
+
+        @Override
+        public Value replaceGenerics(IdentityHashMap<Type.GenericParameter, Type> genericParams) throws SyntaxError {
+            Type newType=type.replaceGenerics(genericParams);
+            boolean changed=newType!=type;
+            Value[] newData=new Value[data.length];
+            for(int i=0;i<length;i++){
+                newData[i+offset]=data[i+offset].replaceGenerics(genericParams);
+                changed|=data[i+offset]!=newData[i+offset];
+            }
+            return changed?this:new ObjectArray(newType,newData,offset,length);
+        }
+        @Override
+        public Value clone(boolean deep,Type targetType) {
+            if(targetType==null)
+                targetType=type;
+            Value[] newData=data.clone();
+            if(deep){
+                for(int i=offset;i<offset+length;i++){
+                    newData[i]=data[i].clone(true,targetType.content());
+                }
+            }
+            return new ObjectArray(targetType,newData,offset,length);
+        }
+    }
+    private static final class ByteArray extends ArrayValue{
+        byte[] data;
+        private ByteArray(Type type,byte[] data) {
+            super(type,0,0);
+            this.data=data;
+        }
+
+        @Override
+        int dataLength() {
+            return data.length;
+        }
+        @Override
+        Value load(int i) {
+            return ofByte(data[i]);
+        }
+        @Override
+        void store(int i, Value val) throws TypeError {
+            data[i]=val.asByte();
+        }
+        @Override
+        void move(int src, int target, int count) {
+            System.arraycopy(data,src,data,target,count);
+        }
+        @Override
+        void fillData(int from, int to, Value val) throws TypeError {
+            Arrays.fill(data,from,to,val.asByte());
+        }
+        @Override
+        void storeAll(ArrayValue src, int srcOff, int target, int count) throws TypeError {
+            if(src instanceof ByteArray bytes){
+                System.arraycopy(bytes.data,src.offset+srcOff,data,target,count);
+            }else if(src instanceof BufferArray buffer){
+                buffer.data.get(src.offset+srcOff,data,target,count);
+            }else{
+                super.storeAll(src, srcOff, target, count);
+            }
+        }
+        @Override
+        void resize(int newSize) {
+            byte[] newData=new byte[newSize];
+            System.arraycopy(data,offset,newData,offset,length);
+            data=newData;
+        }
+        @Override
+        ArrayValue copy(Type newType) {
+            ByteArray copy=new ByteArray(newType,data.clone());
+            copy.offset=offset;
+            copy.length=length;
+            return copy;
+        }
+
+        /*the data array is shared with the native code whenever possible*/
+        @Override
+        Object rawData(Type argType) throws TypeError {
+            if(argType.isArray()&&argType.content()==Type.BYTE()){
+                return offset==0&&length==data.length?data:Arrays.copyOfRange(data,offset,offset+length);
+            }else if(argType.isMemory()&&argType.content()==Type.BYTE()){
+                return new Object[]{data,offset,length};
+            }
+            return super.rawData(argType);
+        }
+        @Override
+        void updateFrom(Object nativeArg) throws ConcatRuntimeError {
+            if(nativeArg instanceof byte[] unpacked && (type.isArray()||type.isMemory())&&type.content()==Type.BYTE()){
+                if(unpacked!=data){
+                    System.arraycopy(unpacked,0,data,offset,length);
+                }
+            }else if(nativeArg instanceof Object[] nativeArgs && type.isMemory()&&type.content()==Type.BYTE()){
+                data=(byte[])nativeArgs[0];
+                offset=(int)nativeArgs[1];
+                length=(int)nativeArgs[2];
+            }else{
+                super.updateFrom(nativeArg);
+            }
+        }
+        @Override
+        ByteBuffer byteBuffer() {
+            return ByteBuffer.wrap(data,offset,length).slice();
+        }
+        @Override
+        public String stringValue() {
+            return new String(data,offset,length,StandardCharsets.UTF_8);
+        }
+    }
+    /**byte array backed by a ByteBuffer, allows native code to expose memory mapped files without copying them*/
+    private static final class BufferArray extends ArrayValue{
+        final ByteBuffer data;
+        private BufferArray(Type type,ByteBuffer data) {
+            super(type,0,data.capacity());
+            this.data=data;
+        }
+
+        @Override
+        int dataLength() {
+            return data.capacity();
+        }
+        @Override
+        Value load(int i) {
+            return ofByte(data.get(i));
+        }
+        @Override
+        void store(int i, Value val) throws TypeError {
+            data.put(i,val.asByte());
+        }
+        @Override
+        void move(int src, int target, int count) {
+            byte[] tmp=new byte[count];
+            data.get(src,tmp);
+            data.put(target,tmp);
+        }
+        @Override
+        void fillData(int from, int to, Value val) throws TypeError {
+            byte b=val.asByte();
+            for(int i=from;i<to;i++){
+                data.put(i,b);
+            }
+        }
+        @Override
+        void resize(int newSize) {
+            throw new RuntimeException("buffer arrays cannot be resized");
+        }
+        /*copies the elements to a heap array, the buffer may be read-only*/
+        @Override
+        ArrayValue copy(Type newType) {
+            byte[] bytes=new byte[data.capacity()];
+            data.get(0,bytes);
+            ByteArray copy=new ByteArray(newType,bytes);
+            copy.offset=offset;
+            copy.length=length;
+            return copy;
+        }
+
+        @Override
+        Object rawData(Type argType) throws TypeError {
+            if(argType.isArray()&&argType.content()==Type.BYTE()){
+                byte[] bytes=new byte[length];
+                data.get(offset,bytes);
+                return bytes;
+            }
+            return super.rawData(argType);
+        }
+        @Override
+        void updateFrom(Object nativeArg) throws ConcatRuntimeError {
+            if(!data.isReadOnly()){
+                super.updateFrom(nativeArg);
+            }
+        }
+        @Override
+        ByteBuffer byteBuffer() {
+            return data.slice(offset,length);
+        }
+        @Override
+        public String stringValue() {
+            return StandardCharsets.UTF_8.decode(data.slice(offset,length)).toString();
+        }
+    }
+    private static final class CodepointArray extends ArrayValue{
+        int[] data;
+        private CodepointArray(Type type,int[] data) {
+            super(type,0,0);
+            this.data=data;
+        }
+
+        @Override
+        int dataLength() {
+            return data.length;
+        }
+        @Override
+        Value load(int i) {
+            return ofChar(data[i]);
+        }
+        @Override
+        void store(int i, Value val) throws TypeError {
+            data[i]=(int)val.asLong();
+        }
+        @Override
+        void move(int src, int target, int count) {
+            System.arraycopy(data,src,data,target,count);
+        }
+        @Override
+        void fillData(int from, int to, Value val) throws TypeError {
+            Arrays.fill(data,from,to,(int)val.asLong());
+        }
+        @Override
+        void storeAll(ArrayValue src, int srcOff, int target, int count) throws TypeError {
+            if(src instanceof CodepointArray chars){
+                System.arraycopy(chars.data,src.offset+srcOff,data,target,count);
+            }else{
+                super.storeAll(src, srcOff, target, count);
+            }
+        }
+        @Override
+        void resize(int newSize) {
+            int[] newData=new int[newSize];
+            System.arraycopy(data,offset,newData,offset,length);
+            data=newData;
+        }
+        @Override
+        ArrayValue copy(Type newType) {
+            CodepointArray copy=new CodepointArray(newType,data.clone());
+            copy.offset=offset;
+            copy.length=length;
+            return copy;
+        }
 
+        @Override
+        public String stringValue() {
+            StringBuilder str=new StringBuilder();
+            for(int i=offset;i<offset+length;i++){
+                if(data[i]>=0&&data[i]<Character.MAX_CODE_POINT){
+                    str.appendCodePoint(data[i]);
+                }else{
+                    str.append((char)-1);
+                }
+            }
+            return str.toString();
+        }
+    }
+    private static final class IntArray extends ArrayValue{
+        long[] data;
+        final boolean unsigned;
+        private IntArray(Type type,long[] data) {
+            super(type,0,0);
+            this.data=data;
+            unsigned=type.content()==Type.UINT();
+        }
+
+        @Override
+        int dataLength() {
+            return data.length;
+        }
+        @Override
+        Value load(int i) {
+            return ofInt(data[i],unsigned);
+        }
+        @Override
+        void store(int i, Value val) throws TypeError {
+            data[i]=val.asLong();
+        }
+        @Override
+        void move(int src, int target, int count) {
+            System.arraycopy(data,src,data,target,count);
+        }
+        @Override
+        void fillData(int from, int to, Value val) throws TypeError {
+            Arrays.fill(data,from,to,val.asLong());
+        }
+        @Override
+        void storeAll(ArrayValue src, int srcOff, int target, int count) throws TypeError {
+            if(src instanceof IntArray ints&&ints.unsigned==unsigned){
+                System.arraycopy(ints.data,src.offset+srcOff,data,target,count);
+            }else{
+                super.storeAll(src, srcOff, target, count);
+            }
+        }
+        @Override
+        void resize(int newSize) {
+            long[] newData=new long[newSize];
+            System.arraycopy(data,offset,newData,offset,length);
+            data=newData;
+        }
+        @Override
+        ArrayValue copy(Type newType) {
+            IntArray copy=new IntArray(newType,data.clone());
+            copy.offset=offset;
+            copy.length=length;
+            return copy;
+        }
+    }
+    private static final class FloatArray extends ArrayValue{
+        double[] data;
+        private FloatArray(Type type,double[] data) {
+            super(type,0,0);
+            this.data=data;
+        }
+
+        @Override
+        int dataLength() {
+            return data.length;
+        }
+        @Override
+        Value load(int i) {
+            return ofFloat(data[i]);
+        }
+        @Override
+        void store(int i, Value val) throws TypeError {
+            data[i]=val.asDouble();
+        }
+        @Override
+        void move(int src, int target, int count) {
+            System.arraycopy(data,src,data,target,count);
+        }
+        @Override
+        void fillData(int from, int to, Value val) throws TypeError {
+            Arrays.fill(data,from,to,val.asDouble());
+        }
+        @Override
+        void storeAll(ArrayValue src, int srcOff, int target, int count) throws TypeError {
+            if(src instanceof FloatArray floats){
+                System.arraycopy(floats.data,src.offset+srcOff,data,target,count);
+            }else{
+                super.storeAll(src, srcOff, target, count);
+            }
+        }
+        @Override
+        void resize(int newSize) {
+            double[] newData=new double[newSize];
+            System.arraycopy(data,offset,newData,offset,length);
+            data=newData;
+        }
+        @Override
+        ArrayValue copy(Type newType) {
+            FloatArray copy=new FloatArray(newType,data.clone());
+            copy.offset=offset;
+            copy.length=length;
+            return copy;
+        }
+    }
+    private static final class BoolArray extends ArrayValue{
+        boolean[] data;
+        private BoolArray(Type type,boolean[] data) {
+            super(type,0,0);
+            this.data=data;
+        }
+
+        @Override
+        int dataLength() {
+            return data.length;
+        }
+        @Override
+        Value load(int i) {
+            return ofBool(data[i]);
+        }
+        @Override
+        void store(int i, Value val) throws TypeError {
+            data[i]=val.asBool();
+        }
+        @Override
+        void move(int src, int target, int count) {
+            System.arraycopy(data,src,data,target,count);
+        }
+        @Override
+        void fillData(int from, int to, Value val) throws TypeError {
+            Arrays.fill(data,from,to,val.asBool());
+        }
+        @Override
+        void storeAll(ArrayValue src, int srcOff, int target, int count) throws TypeError {
+            if(src instanceof BoolArray bools){
+                System.arraycopy(bools.data,src.offset+srcOff,data,target,count);
+            }else{
+                super.storeAll(src, srcOff, target, count);
+            }
+        }
+        @Override
+        void resize(int newSize) {
+            boolean[] newData=new boolean[newSize];
+            System.arraycopy(data,offset,newData,offset,length);
+            data=newData;
+        }
+        @Override
+        ArrayValue copy(Type newType) {
+            BoolArray copy=new BoolArray(newType,data.clone());
+            copy.offset=offset;
+            copy.length=length;
+            return copy;
+        }
+    }
     public static Value createTuple(Type.TupleLike type, Value[] elements) throws ConcatRuntimeError {
         if(elements.length!=type.elementCount()){
             throw new IllegalArgumentException("elements has to have the same length as types");
@@ -1474,6 +1993,11 @@ public abstract class Value {
         ArrayList<InternalProcedure> procs=new ArrayList<>();
         procs.add(new InternalProcedure(new Type[]{Type.ANY},new Type[]{Type.UINT()},"refId",
                 (values) -> new Value[]{Value.ofInt(values[0].id(),true)},false));
+        procs.add(new InternalProcedure(new Type[0],new Type[]{Type.RAW_STRING()},"interpreterMetrics",
+                (values) -> {
+                    InterpreterMetrics metrics=InterpreterMetrics.current;
+                    return new Value[]{Value.ofString(metrics==null?"":metrics.toJSON(),false)};
+                },false));
         {
             Type.GenericParameter a=new Type.GenericParameter("A", 0,true,InternalProcedure.POSITION);
             Type.GenericParameter b=new Type.GenericParameter("B", 1,true,InternalProcedure.POSITION);
@@ -1735,15 +2259,14 @@ public abstract class Value {
                     (values) ->  {
                         long index=values[1].asLong();
                         ArrayLike array=((ArrayLike)values[0]);
-                        return new Value[]{new ReferenceValue(values[0].type.content(),()->array.get(index),
-                                val->array.set(index,val))};
+                        return new Value[]{new ElementReference(values[0].type.content(),array,index)};
                     },false)
                     .genericCompile(types->gen->gen.append("if(").getPrimitive(1,Type.UINT()).append(" >= ")
                         .getPrimitive(2,Type.UINT()).append("){ //index>=len").endLine().indent()
                         .append("fprintf(stderr,\"array index (%\"PRIu64\") out of bounds for length %\"PRIu64\"\\n\", ")
                         .getPrimitive(1,Type.UINT()).append(", ").getPrimitive(2,Type.UINT()).append(")").endLine()
                         .append("exit(0xa11a7)").endLine().dedent().append("}").newLine()
-                        .assignPointer(2,types[0].content(),false).getPointer(2,types[0].content())
+                        .assignPointer(3,types[0].content(),false).getPointer(3,types[0].content())
                         .append(" + "+(types[0].content().blockCount())+" * ").getPrimitive(1,Type.UINT()).endLine().changeStackPointer(-2)));
         }
         {
@@ -1751,14 +2274,23 @@ public abstract class Value {
             procs.add(new InternalProcedure(new Type.GenericParameter[]{a},new Type[]{Type.arrayOf(a).maybeMutable(),Type.UINT()},
                     new Type[]{a},"[]",
                     (values) ->  new Value[]{((ArrayLike)values[0]).get(values[1].asLong())},false)
-                    .genericCompile(types->gen->gen.append("if(").getPrimitive(1,Type.UINT()).append(" >= ")
-                            .getPrimitive(2,Type.UINT()).append("){ //index>=len").endLine().indent()
-                            .append("fprintf(stderr,\"array index (%\"PRIu64\") out of bounds for length %\"PRIu64\"\\n\", ")
-                            .getPrimitive(1,Type.UINT()).append(", ").getPrimitive(2,Type.UINT()).append(")").endLine()
-                            .append("exit(0xa11a7)").endLine().dedent().append("}").newLine()
-                            //TODO non-primitive arrays
-                            .assignPrimitive(3,types[0].content()).append("*(").getPointer(3,types[0].content())
-                            .append(" + ").getPrimitive(1,Type.UINT()).append(")").endLine().changeStackPointer(-2)));
+                    .genericCompile(types->gen->{
+                        gen.append("if(").getPrimitive(1,Type.UINT()).append(" >= ")
+                                .getPrimitive(2,Type.UINT()).append("){ //index>=len").endLine().indent()
+                                .append("fprintf(stderr,\"array index (%\"PRIu64\") out of bounds for length %\"PRIu64\"\\n\", ")
+                                .getPrimitive(1,Type.UINT()).append(", ").getPrimitive(2,Type.UINT()).append(")").endLine()
+                                .append("exit(0xa11a7)").endLine().dedent().append("}").newLine();
+                        Type content=types[0].content();
+                        if(content.baseType() instanceof BaseType.StackValue){
+                            return gen.assignPrimitive(3,content).append("*(").getPointer(3,content)
+                                    .append(" + ").getPrimitive(1,Type.UINT()).append(")").endLine().changeStackPointer(-2);
+                        }
+                        //elements of non-primitive arrays are stored as blocks of stack values
+                        return gen.append("memcpy(").getRaw(3).append(", ").getPointer(3,content)
+                                .append(" + "+content.blockCount()+" * ").getPrimitive(1,Type.UINT())
+                                .append(", "+content.blockCount()+"*sizeof("+Compiler.STACK_DATA_TYPE+"))").endLine()
+                                .changeStackPointer(content.blockCount()-3);
+                    }));
         }
 
         {
@@ -1789,7 +2321,11 @@ public abstract class Value {
                         //list val
                         ((ArrayLike)values[0]).append(values[1]);
                         return new Value[0];
-                    },false));
+                    },false).genericCompile(types->gen->{
+                        int blocks=types[1].blockCount();
+                        return Compiler.compileMemoryInsert(gen,types[1],blocks+1,blocks,Compiler.MEMORY_APPEND)
+                                .stackDrop(0,blocks+1);
+                    }));
         }
         {
             Type.GenericParameter a=new Type.GenericParameter("A", 0,true,InternalProcedure.POSITION);
@@ -1799,7 +2335,11 @@ public abstract class Value {
                         //val list
                         ((ArrayLike)values[1]).prepend(values[0]);
                         return new Value[0];
-                    },false));
+                    },false).genericCompile(types->gen->{
+                        int blocks=types[0].blockCount();
+                        return Compiler.compileMemoryInsert(gen,types[0],1,blocks+1,Compiler.MEMORY_PREPEND)
+                                .stackDrop(0,blocks+1);
+                    }));
         }
         {
             Type.GenericParameter a=new Type.GenericParameter("A", 0,true,InternalProcedure.POSITION);
@@ -1812,9 +2352,17 @@ public abstract class Value {
                         ArrayLike target=(ArrayLike)values[2];
                         long off=values[3].asLong();
                         long count=values[4].asLong();
-                        target.copyFrom(off,src.elements(),srcOff,count);
+                        target.copyFrom(off,src,srcOff,count);
                         return new Value[0];
-                    },false));
+                    },false).genericCompile(types->gen->{
+                        //src srcLen srcOff target off count
+                        Type content=types[0].content();
+                        gen.append(Compiler.MEMORY_COPY+"((const char*)").getPointer(6,content).append(", ")
+                                .getPrimitive(5,Type.UINT()).append(", ").getPrimitive(4,Type.UINT()).append(", ");
+                        return Compiler.getMemory(gen,3).append(", ").getPrimitive(2,Type.INT()).append(", ")
+                                .getPrimitive(1,Type.UINT()).append(", "+Compiler.elementSize(content)+")").endLine()
+                                .stackDrop(0,6);
+                    }));
         }
         {
             Type.GenericParameter a=new Type.GenericParameter("A", 0,true,InternalProcedure.POSITION);
@@ -1827,9 +2375,25 @@ public abstract class Value {
                         ArrayLike target=(ArrayLike)values[2];
                         long off=values[3].asLong();
                         long count=values[4].asLong();
-                        target.copyFrom(off,src.elements(),srcOff,count);
+                        target.copyFrom(off,src,srcOff,count);
                         return new Value[0];
-                    },false));
+                    },false).genericCompile(types->gen->{
+                        //src srcLen srcOff target targetLen off count
+                        Type content=types[0].content();
+                        String size=Compiler.elementSize(content);
+                        return gen.append("if(").getPrimitive(5,Type.UINT()).append(" + ").getPrimitive(1,Type.UINT())
+                                .append(" > ").getPrimitive(6,Type.UINT()).append(" || ").getPrimitive(2,Type.INT())
+                                .append(" < 0 || (uint64_t)").getPrimitive(2,Type.INT()).append(" + ")
+                                .getPrimitive(1,Type.UINT()).append(" > ").getPrimitive(3,Type.UINT()).append("){").newLine().indent()
+                                .append("fprintf(stderr,\"invalid offsets for copy: %\"PRIu64\" -> %\"PRIi64\" count: %\"PRIu64\"\\n\", ")
+                                .getPrimitive(5,Type.UINT()).append(", ").getPrimitive(2,Type.INT()).append(", ")
+                                .getPrimitive(1,Type.UINT()).append(")").endLine()
+                                .append("exit(0xa11a7)").endLine().dedent().append("}").newLine()
+                                .append("memmove((char*)").getPointer(4,content).append(" + ").getPrimitive(2,Type.INT())
+                                .append(" * "+size+", (char*)").getPointer(7,content).append(" + ").getPrimitive(5,Type.UINT())
+                                .append(" * "+size+", ").getPrimitive(1,Type.UINT()).append(" * "+size+")").endLine()
+                                .stackDrop(0,7);
+                    }));
         }
         {
             Type.GenericParameter a=new Type.GenericParameter("A", 0,true,InternalProcedure.POSITION);
@@ -1844,9 +2408,17 @@ public abstract class Value {
                         long sliceStart=values[3].asLong();
                         long sliceEnd=values[4].asLong();
                         long count=values[5].asLong();
-                        target.copyToSlice(sliceStart,sliceEnd,src.elements(),srcOff,count);
+                        target.copyToSlice(sliceStart,sliceEnd,src,srcOff,count);
                         return new Value[0];
-                    },false));
+                    },false).genericCompile(types->gen->{
+                        //src srcLen srcOff target sliceStart sliceEnd count
+                        Type content=types[0].content();
+                        gen.append(Compiler.MEMORY_COPY_TO_SLICE+"((const char*)").getPointer(7,content).append(", ")
+                                .getPrimitive(6,Type.UINT()).append(", ").getPrimitive(5,Type.UINT()).append(", ");
+                        return Compiler.getMemory(gen,4).append(", ").getPrimitive(3,Type.UINT()).append(", ")
+                                .getPrimitive(2,Type.UINT()).append(", ").getPrimitive(1,Type.UINT())
+                                .append(", "+Compiler.elementSize(content)+")").endLine().stackDrop(0,7);
+                    }));
         }
         {
             Type.GenericParameter a=new Type.GenericParameter("A", 0,true,InternalProcedure.POSITION);
@@ -1860,7 +2432,15 @@ public abstract class Value {
                         long count=values[3].asLong();
                         target.fill(val,off,count);
                         return new Value[0];
-                    },false));
+                    },false).genericCompile(types->gen->{
+                        //val target off count
+                        Type content=types[0];
+                        int blocks=content.blockCount();
+                        gen.pushPointer(content).append("("+content.baseType().pointerTo().cType+")"+Compiler.MEMORY_RESERVE+"(");
+                        Compiler.getMemory(gen,4).append(", ").getPrimitive(3,Type.INT()).append(", ")
+                                .getPrimitive(2,Type.UINT()).append(", "+Compiler.elementSize(content)+")").endLine();
+                        return Compiler.compileFill(gen,content,2,blocks+4).stackDrop(0,blocks+4);
+                    }));
         }
         {
             Type.GenericParameter a=new Type.GenericParameter("A", 0,true,InternalProcedure.POSITION);
@@ -1874,7 +2454,21 @@ public abstract class Value {
                         long count=values[3].asLong();
                         target.fill(val,off,count);
                         return new Value[0];
-                    },false));
+                    },false).genericCompile(types->gen->{
+                        //val target len off count
+                        Type content=types[0];
+                        int blocks=content.blockCount();
+                        gen.append("if(").getPrimitive(2,Type.INT()).append(" < 0 || (uint64_t)").getPrimitive(2,Type.INT())
+                                .append(" + ").getPrimitive(1,Type.UINT()).append(" > ").getPrimitive(3,Type.UINT())
+                                .append("){").newLine().indent()
+                                .append("fprintf(stderr,\"invalid offset for fill: %\"PRIi64\" count: %\"PRIu64\" length: %\"PRIu64\"\\n\", ")
+                                .getPrimitive(2,Type.INT()).append(", ").getPrimitive(1,Type.UINT()).append(", ")
+                                .getPrimitive(3,Type.UINT()).append(")").endLine()
+                                .append("exit(0xa11a7)").endLine().dedent().append("}").newLine()
+                                .pushPointer(content).getPointer(5,content).append(" + "+blocks+" * ")
+                                .getPrimitive(3,Type.INT()).endLine();
+                        return Compiler.compileFill(gen,content,2,blocks+5).stackDrop(0,blocks+5);
+                    }));
         }
         {
             Type.GenericParameter a=new Type.GenericParameter("A", 0,true,InternalProcedure.POSITION);
@@ -1887,7 +2481,10 @@ public abstract class Value {
                         long to=values[2].asLong();
                         mem.clearSlice(off,to);
                         return new Value[0];
-                    },false));
+                    },false).genericCompile(types->gen->
+                            Compiler.getMemory(gen.append(Compiler.MEMORY_CLEAR_SLICE+"("),3).append(", ")
+                                    .getPrimitive(2,Type.UINT()).append(", ").getPrimitive(1,Type.UINT())
+                                    .append(", "+Compiler.elementSize(types[0].content())+")").endLine().stackDrop(0,3)));
         }
         {
             Type.GenericParameter a=new Type.GenericParameter("A", 0,true,InternalProcedure.POSITION);
@@ -1899,7 +2496,10 @@ public abstract class Value {
                         long newSize=values[1].asLong();
                         mem.reallocate(newSize);
                         return new Value[0];
-                    },false));
+                    },false).genericCompile(types->gen->
+                            Compiler.getMemory(gen.append(Compiler.MEMORY_REALLOC+"("),2).append(", ")
+                                    .getPrimitive(1,Type.UINT()).append(", "+Compiler.elementSize(types[0].content())+")")
+                                    .endLine().stackDrop(0,2)));
         }
         {
             Type.GenericParameter a=new Type.GenericParameter("A", 0,true,InternalProcedure.POSITION);
@@ -1911,7 +2511,10 @@ public abstract class Value {
                         long newOffset=values[1].asLong();
                         mem.setOffset(newOffset);
                         return new Value[0];
-                    },false));
+                    },false).genericCompile(types->gen->
+                            Compiler.getMemory(gen.append(Compiler.MEMORY_SET_OFFSET+"("),2).append(", ")
+                                    .getPrimitive(1,Type.INT()).append(", "+Compiler.elementSize(types[0].content())+")")
+                                    .endLine().stackDrop(0,2)));
         }
 
         return procs;
@@ -1949,10 +2552,13 @@ public abstract class Value {
             }else if(type==Type.FLOAT){
                 return ofFloat((Double)jValue);
             }else if(type.isArray()&&type.content()==Type.BYTE()){
-                return new ArrayValue(type,wrapBytes((byte[])jValue));
+                if(jValue instanceof ByteBuffer buffer){//shared with the native code
+                    return new BufferArray(type,buffer.slice());
+                }
+                return wrapBytes(type,(byte[])jValue,0,-1);
             }else if(type.isMemory()&&type.content()==Type.BYTE()){
                 Object[] parts=(Object[])jValue;
-                return new ArrayValue(type,wrapBytes((byte[])parts[0]),(int)parts[1],(int)parts[2]);
+                return wrapBytes(type,(byte[])parts[0],(int)parts[1],(int)parts[2]);
             }else if(type.isOptional()){
                 Optional<?> o=(Optional<?>)jValue;
                 if(o.isEmpty()){
@@ -2023,16 +2629,51 @@ public abstract class Value {
             className = className.substring(0, className.lastIndexOf('.'));
             ClassLoader loader = getLoader(dir);
             Class<?> cls = loader.loadClass(className);
-            Class<?> [] signature=new Class[procType.inTypes.length];
-            for(int i=0;i<signature.length;i++){
+            Class<?> [] signature=new Class[procType.inTypes.length+(procType.outTypes.length>1?2:0)];
+            for(int i=0;i<procType.inTypes.length;i++){
                 signature[i]=jClass(procType.inTypes[i]);
             }
-            Method m=cls.getMethod("nativeImpl_"+name,signature);
-            return new ExternalProcedure(name, isPublic, procType,m, declaredAt);
-        } catch (MalformedURLException | ClassNotFoundException | NoSuchMethodException | TypeError e) {
+            if(procType.outTypes.length>1){//output frame
+                for(Type t:procType.outTypes){
+                    jClass(t);//check type
+                }
+                signature[procType.inTypes.length]=long[].class;
+                signature[procType.inTypes.length+1]=Object[].class;
+            }
+            Method m;
+            try{
+                m=cls.getMethod("nativeImpl_"+name,signature);
+            }catch (NoSuchMethodException e){
+                //byte arrays can also be passed as ByteBuffer
+                m=null;
+                for(Method candidate:cls.getMethods()){
+                    if(candidate.getName().equals("nativeImpl_"+name)&&
+                            acceptsByteBuffers(candidate.getParameterTypes(),signature)){
+                        m=candidate;
+                        break;
+                    }
+                }
+                if(m==null){
+                    throw e;
+                }
+            }
+            return new ExternalProcedure(name, isPublic, procType,m, MethodHandles.publicLookup().unreflect(m), declaredAt);
+        } catch (MalformedURLException | ClassNotFoundException | NoSuchMethodException | IllegalAccessException | TypeError e) {
             throw new SyntaxError("Error while loading native procedure "+name+": "+e,declaredAt);
         }
     }
+    /**checks if params matches signature, with the exception that byte arrays can be passed as ByteBuffer*/
+    private static boolean acceptsByteBuffers(Class<?>[] params, Class<?>[] signature){
+        if(params.length!=signature.length){
+            return false;
+        }
+        for(int i=0;i<params.length;i++){
+            if(params[i]!=signature[i]&&!(params[i]==ByteBuffer.class&&signature[i]==byte[].class)){
+                return false;
+            }
+        }
+        return true;
+    }
     static class ExternalValue extends Value{
         final Object nativeValue;
         protected ExternalValue(Type.NativeType type, Object nativeValue) {
@@ -2050,45 +2691,257 @@ public abstract class Value {
             return "native value @"+System.identityHashCode(nativeValue);
         }
     }
+    /**procedure implemented by a public static method nativeImpl_[name] of a java class,
+     * procedures with multiple return values receive two additional arguments long[] primitiveOut, Object[] objectOut
+     * of the same length as the output types. The i-th output is written to primitiveOut[i]
+     * if it has a primitive type (floats as raw bits, bools as 0 or 1) and to objectOut[i] otherwise*/
     static class ExternalProcedure extends NativeProcedure {
+        private static final MethodHandle AS_BOOL, AS_BYTE, AS_CODEPOINT, AS_LONG, AS_DOUBLE, BYTE_BUFFER, RAW_DATA;
+        private static final MethodHandle OF_BOOL, OF_BYTE, OF_CHAR, OF_INT, OF_FLOAT, FROM_J_VALUE;
+        static {
+            try {
+                MethodHandles.Lookup lookup=MethodHandles.lookup();
+                AS_BOOL=lookup.findVirtual(Value.class,"asBool",MethodType.methodType(boolean.class));
+                AS_BYTE=lookup.findVirtual(Value.class,"asByte",MethodType.methodType(byte.class));
+                AS_CODEPOINT=lookup.findStatic(ExternalProcedure.class,"asCodepoint",MethodType.methodType(int.class,Value.class));
+                AS_LONG=lookup.findVirtual(Value.class,"asLong",MethodType.methodType(long.class));
+                AS_DOUBLE=lookup.findVirtual(Value.class,"asDouble",MethodType.methodType(double.class));
+                BYTE_BUFFER=lookup.findVirtual(Value.class,"byteBuffer",MethodType.methodType(ByteBuffer.class));
+                RAW_DATA=lookup.findVirtual(Value.class,"rawData",MethodType.methodType(Object.class,Type.class));
+                OF_BOOL=lookup.findStatic(Value.class,"ofBool",MethodType.methodType(Value.class,boolean.class));
+                OF_BYTE=lookup.findStatic(Value.class,"ofByte",MethodType.methodType(Value.class,byte.class));
+                OF_CHAR=lookup.findStatic(Value.class,"ofChar",MethodType.methodType(Value.class,int.class));
+                OF_INT=lookup.findStatic(Value.class,"ofInt",MethodType.methodType(Value.class,long.class,boolean.class));
+                OF_FLOAT=lookup.findStatic(Value.class,"ofFloat",MethodType.methodType(Value.class,double.class));
+                FROM_J_VALUE=lookup.findStatic(Value.class,"fromJValue",MethodType.methodType(Value.class,Type.class,Object.class));
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        private static int asCodepoint(Value v) throws TypeError {
+            return (int)v.asLong();
+        }
+
         final boolean isPublic;
         final Method nativeMethod;
-        private ExternalProcedure(String name, boolean isPublic, Type.Procedure type, Method nativeMethod, FilePosition declaredAt) {
+        private final MethodHandle nativeHandle;
+        /**handle of nativeMethod adapted to accept the concat values as a Value[] and to return the concat result,
+         * methods that receive byte arrays or memories (which have to be copied back after the call)
+         * use a handle accepting the converted arguments as an Object[] instead*/
+        private final MethodHandle handle;
+        /**true if handle accepts the converted arguments as an Object[]*/
+        private final boolean spreadRaw;
+        /**converters from the concat value to the argument of nativeMethod, only used if spreadRaw is set*/
+        private final ArgConverter[] argConverters;
+        private final ThrowingFunction<Object,Value,ConcatRuntimeError> resultConverter;
+        /**output frame of procedures with multiple return values, reused in every call*/
+        private final long[] primitiveOut;
+        private final Object[] objectOut;
+        private final Value[] results;
+        private final OutputConverter[] outputConverters;
+        private interface ArgConverter{
+            Object convert(Value value) throws ConcatRuntimeError;
+        }
+        private interface OutputConverter{
+            Value convert(long primitive,Object object) throws ConcatRuntimeError;
+        }
+        private ExternalProcedure(String name, boolean isPublic, Type.Procedure type, Method nativeMethod,
+                                  MethodHandle nativeHandle, FilePosition declaredAt) {
             super(type, name, declaredAt);
             this.isPublic = isPublic;
             this.nativeMethod = nativeMethod;
+            this.nativeHandle = nativeHandle;
+            Class<?>[] params=nativeMethod.getParameterTypes();
+            boolean spreadRaw=false;
+            for(int i=0;i<type.inTypes.length;i++){
+                spreadRaw|=params[i]==byte[].class||params[i]==Object[].class;
+            }
+            this.spreadRaw=spreadRaw;
+            if(type.outTypes.length>1){
+                primitiveOut=new long[type.outTypes.length];
+                objectOut=new Object[type.outTypes.length];
+                results=new Value[type.outTypes.length];
+                outputConverters=new OutputConverter[type.outTypes.length];
+                for(int i=0;i<outputConverters.length;i++){
+                    outputConverters[i]=outputConverter(type.outTypes[i]);
+                }
+            }else{
+                primitiveOut=null;
+                objectOut=null;
+                results=type.outTypes.length==1?new Value[1]:null;
+                outputConverters=null;
+            }
+            if(spreadRaw){
+                handle=nativeHandle.asSpreader(Object[].class,params.length)
+                        .asType(MethodType.methodType(Object.class,Object[].class));
+                argConverters=new ArgConverter[type.inTypes.length];
+                for(int i=0;i<argConverters.length;i++){
+                    argConverters[i]=params[i]==ByteBuffer.class?Value::byteBuffer:argConverter(type.inTypes[i]);
+                }
+                resultConverter=type.outTypes.length==1?resultConverter(type.outTypes[0]):null;
+            }else{
+                handle=exactHandle(nativeHandle,type,params);
+                argConverters=null;
+                resultConverter=null;
+            }
+        }
+        /**binds nativeHandle to the primitive signature of the native method,
+         * the resulting handle has the type (Value[])Value for procedures with one output and (Value[])void otherwise*/
+        private MethodHandle exactHandle(MethodHandle nativeHandle,Type.Procedure type,Class<?>[] params){
+            MethodHandle h=nativeHandle;
+            if(type.outTypes.length>1){
+                h=MethodHandles.insertArguments(h,type.inTypes.length,primitiveOut,objectOut);
+            }
+            MethodHandle[] filters=new MethodHandle[type.inTypes.length];
+            for(int i=0;i<filters.length;i++){
+                filters[i]=argFilter(type.inTypes[i],params[i]);
+            }
+            h=MethodHandles.filterArguments(h,0,filters);
+            if(type.outTypes.length==1){
+                h=MethodHandles.filterReturnValue(h,resultFilter(type.outTypes[0],h.type().returnType()));
+            }
+            return h.asSpreader(Value[].class,filters.length)
+                    .asType(MethodType.methodType(type.outTypes.length==1?Value.class:void.class,Value[].class));
+        }
+        private static MethodHandle argFilter(Type t,Class<?> param){
+            if(param==ByteBuffer.class){
+                return BYTE_BUFFER;
+            }else if(t == Type.BOOL){
+                return AS_BOOL;
+            }else if(t == Type.BYTE()){
+                return AS_BYTE;
+            }else if(t == Type.CODEPOINT()){
+                return AS_CODEPOINT;
+            }else if(t == Type.INT()||t == Type.UINT()){
+                return AS_LONG;
+            }else if(t == Type.FLOAT){
+                return AS_DOUBLE;
+            }
+            return MethodHandles.insertArguments(RAW_DATA,1,t).asType(MethodType.methodType(param,Value.class));
+        }
+        private static MethodHandle resultFilter(Type t,Class<?> result){
+            if(result==boolean.class){
+                return OF_BOOL;
+            }else if(result==byte.class){
+                return OF_BYTE;
+            }else if(result==int.class){
+                return OF_CHAR;
+            }else if(result==long.class){
+                return MethodHandles.insertArguments(OF_INT,1,t == Type.UINT());
+            }else if(result==double.class){
+                return OF_FLOAT;
+            }
+            return MethodHandles.insertArguments(FROM_J_VALUE,0,t).asType(MethodType.methodType(Value.class,result));
+        }
+        private static OutputConverter outputConverter(Type t){
+            if(t == Type.BOOL){
+                return (p,o)->ofBool(p!=0);
+            }else if(t == Type.BYTE()){
+                return (p,o)->ofByte((byte)p);
+            }else if(t == Type.CODEPOINT()){
+                return (p,o)->ofChar((int)p);
+            }else if(t == Type.INT()||t == Type.UINT()){
+                boolean unsigned=t == Type.UINT();
+                return (p,o)->ofInt(p,unsigned);
+            }else if(t == Type.FLOAT){
+                return (p,o)->ofFloat(Double.longBitsToDouble(p));
+            }
+            return (p,o)->fromJValue(t,o);
+        }
+        private static ArgConverter argConverter(Type t){
+            if(t == Type.BOOL){
+                return Value::asBool;
+            }else if(t == Type.BYTE()){
+                return Value::asByte;
+            }else if(t == Type.CODEPOINT()){
+                return ExternalProcedure::asCodepoint;
+            }else if(t == Type.INT()||t == Type.UINT()){
+                return Value::asLong;
+            }else if(t == Type.FLOAT){
+                return Value::asDouble;
+            }
+            return v->v.rawData(t);
+        }
+        private static ThrowingFunction<Object,Value,ConcatRuntimeError> resultConverter(Type t){
+            if(t == Type.BOOL){
+                return res->res instanceof Boolean b?ofBool(b):fromJValue(t,res);
+            }else if(t == Type.BYTE()){
+                return res->res instanceof Byte b?ofByte(b):fromJValue(t,res);
+            }else if(t == Type.CODEPOINT()){
+                return res->res instanceof Integer c?ofChar(c):fromJValue(t,res);
+            }else if(t == Type.INT()||t == Type.UINT()){
+                boolean unsigned=t == Type.UINT();
+                return res->res instanceof Long l?ofInt(l,unsigned):fromJValue(t,res);
+            }else if(t == Type.FLOAT){
+                return res->res instanceof Double d?ofFloat(d):fromJValue(t,res);
+            }
+            return res->fromJValue(t,res);
         }
 
         @Override
         public Value replaceGenerics(IdentityHashMap<Type.GenericParameter, Type> genericParams) throws SyntaxError {
             Type.Procedure newType = (Type.Procedure) type.replaceGenerics(genericParams);
-            return newType!=type?new ExternalProcedure(name,isPublic, newType,nativeMethod,declaredAt):this;
+            return newType!=type?new ExternalProcedure(name,isPublic, newType,nativeMethod,nativeHandle,declaredAt):this;
         }
 
+        //the result arrays are reused, the callers push the results to the stack immediately
         @Override
         Value[] callWith(Value[] values) throws ConcatRuntimeError {
-            Object[] nativeArgs=new Object[values.length];
-            for(int i=0;i<values.length;i++){
-                nativeArgs[i]=values[i].rawData(type.inTypes().get(i));
+            if(spreadRaw){
+                return callRaw(values);
+            }
+            if(objectOut!=null){
+                Arrays.fill(objectOut,null);
             }
             try {
-                Object res=nativeMethod.invoke(null,nativeArgs);
-                for(int i=0;i<values.length;i++){
-                    values[i].updateFrom(nativeArgs[i]);
-                }
-                if(((Type.Procedure)type).outTypes.length==0){
+                if(results==null){
+                    handle.invokeExact(values);
                     return new Value[0];
-                }else if(((Type.Procedure)type).outTypes.length==1){
-                    return new Value[]{Value.fromJValue(((Type.Procedure)type).outTypes[0],res)};
-                }else{
-                    //addLater implement handling of multiple output arguments
-                    throw new UnsupportedOperationException("native functions with multiple output arguments are not supported");
+                }else if(results.length==1){
+                    results[0]=(Value)handle.invokeExact(values);
+                    return results;
                 }
-            } catch (IllegalAccessException e) {
-                throw new ConcatRuntimeError(e.toString());
-            } catch (InvocationTargetException e) {
-                throw new ConcatRuntimeError(e.getCause().toString());
+                handle.invokeExact(values);
+            } catch (ConcatRuntimeError e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new ConcatRuntimeError(t.toString());
             }
+            for(int i=0;i<results.length;i++){
+                results[i]=outputConverters[i].convert(primitiveOut[i],objectOut[i]);
+            }
+            return results;
+        }
+        /**calls the native method with the converted arguments and copies the modified arguments back*/
+        private Value[] callRaw(Value[] values) throws ConcatRuntimeError {
+            Object[] nativeArgs=new Object[values.length+(objectOut!=null?2:0)];
+            for(int i=0;i<values.length;i++){
+                nativeArgs[i]=argConverters[i].convert(values[i]);
+            }
+            if(objectOut!=null){
+                Arrays.fill(objectOut,null);
+                nativeArgs[values.length]=primitiveOut;
+                nativeArgs[values.length+1]=objectOut;
+            }
+            Object res;
+            try {
+                res=(Object)handle.invokeExact(nativeArgs);
+            } catch (Throwable t) {
+                throw new ConcatRuntimeError(t.toString());
+            }
+            for(int i=0;i<values.length;i++){
+                values[i].updateFrom(nativeArgs[i]);
+            }
+            if(results==null){
+                return new Value[0];
+            }else if(objectOut==null){
+                results[0]=resultConverter.apply(res);
+                return results;
+            }
+            for(int i=0;i<results.length;i++){
+                results[i]=outputConverters[i].convert(primitiveOut[i],objectOut[i]);
+            }
+            return results;
         }
         @Override
         public String stringValue() {
@@ -2174,14 +3027,9 @@ public abstract class Value {
             return wrapped.stringValue();
         }
     }
-    static class ReferenceValue extends Value{
-        private final ThrowingSupplier<Value,ConcatRuntimeError> get;
-        private final ThrowingConsumer<Value,ConcatRuntimeError> set;
-        ReferenceValue(Type contentType, ThrowingSupplier<Value,ConcatRuntimeError> get,
-                       ThrowingConsumer<Value,ConcatRuntimeError> set) {
+    abstract static class ReferenceValue extends Value{
+        ReferenceValue(Type contentType) {
             super(Type.referenceTo(contentType));
-            this.get = get;
-            this.set = set;
         }
 
         @Override
@@ -2189,37 +3037,87 @@ public abstract class Value {
             if(!(obj instanceof ReferenceValue))
                 return false;
             try {
-                return get.get().equals(((ReferenceValue) obj).get.get());
+                return get().equals(((ReferenceValue) obj).get());
             } catch (ConcatRuntimeError e) {
                 throw new RuntimeException(e);
             }
         }
-        public Value get() throws ConcatRuntimeError {
-            return get.get();
-        }
-        public void set(Value newVal) throws ConcatRuntimeError {
-            set.accept(newVal);
-        }
+        public abstract Value get() throws ConcatRuntimeError;
+        public abstract void set(Value newVal) throws ConcatRuntimeError;
 
         @Override
         public Value castTo(Type newType) throws ConcatRuntimeError {
             if(type.canAssignTo(newType))
                 return this;
             if(type.content().canCastTo(newType) != Type.CastType.NONE)
-                return get.get().castTo(newType);
+                return get().castTo(newType);
             return super.castTo(newType);
         }
 
         @Override
         public String stringValue() {
             try {
-                return type+"("+get.get()+")";
+                return type+"("+get()+")";
             } catch (ConcatRuntimeError e) {
                 throw new RuntimeException(e);
             }
         }
 
     }
+    /**reference to a slot in a variable frame*/
+    static final class VariableReference extends ReferenceValue{
+        private final Value[] values;
+        private final int index;
+        VariableReference(Type contentType, Value[] values, int index) {
+            super(contentType);
+            this.values = values;
+            this.index = index;
+        }
+        @Override
+        public Value get() {
+            return values[index];
+        }
+        @Override
+        public void set(Value newVal) {
+            values[index]=newVal;
+        }
+    }
+    /**reference to a field of a tuple or struct*/
+    static final class FieldReference extends ReferenceValue{
+        private final Value tuple;
+        private final int index;
+        FieldReference(Type contentType, Value tuple, int index) {
+            super(contentType);
+            this.tuple = tuple;
+            this.index = index;
+        }
+        @Override
+        public Value get() throws ConcatRuntimeError {
+            return tuple.getField(index);
+        }
+        @Override
+        public void set(Value newVal) throws ConcatRuntimeError {
+            tuple.set(index,newVal);
+        }
+    }
+    /**reference to an element of an array*/
+    static final class ElementReference extends ReferenceValue{
+        private final ArrayLike array;
+        private final long index;
+        ElementReference(Type contentType, ArrayLike array, long index) {
+            super(contentType);
+            this.array = array;
+            this.index = index;
+        }
+        @Override
+        public Value get() throws ConcatRuntimeError {
+            return array.get(index);
+        }
+        @Override
+        public void set(Value newVal) throws ConcatRuntimeError {
+            array.set(index,newVal);
+        }
+    }
 
     static final String[] cmpOps={"<","<=","!=",">",">=","=="};
     static String sgnCheck(String op,boolean lSgn){
@@ -0,0 +1,75 @@
+package bsoelch.concat;
+
+import java.util.Arrays;
+
+/**variables of a frame of the bytecode interpreter,
+ * like on the {@link OperandStack} ints and floats are stored unboxed,
+ * slots that are accessed through a {@link Value.VariableReference} are pinned to their boxed value*/
+final class VariableSlots {
+    /**tag of slots that are shared with a variable reference, the value is always stored in boxed*/
+    static final byte PINNED = 4;
+
+    private final Value[] boxed;
+    /**raw values of unboxed slots, floats are stored as their bit representation*/
+    private final long[] raw;
+    private final byte[] tags;
+
+    VariableSlots(int size){
+        this(new Value[size]);
+    }
+    /**creates slots that use values as storage for the boxed variables*/
+    VariableSlots(Value[] values){
+        boxed=values;
+        raw=new long[values.length];
+        tags=new byte[values.length];
+    }
+
+    int size(){
+        return tags.length;
+    }
+
+    Value get(int i){
+        return switch (tags[i]){
+            case OperandStack.BOXED, PINNED -> boxed[i];
+            case OperandStack.INT   -> Value.ofInt(raw[i],false);
+            case OperandStack.UINT  -> Value.ofInt(raw[i],true);
+            case OperandStack.FLOAT -> Value.ofFloat(Double.longBitsToDouble(raw[i]));
+            default -> throw new RuntimeException("unexpected tag: "+tags[i]);
+        };
+    }
+    /**pushes the value of the i-th slot to stack without boxing it*/
+    void load(int i,OperandStack stack){
+        switch (tags[i]){
+            case OperandStack.INT   -> stack.pushInt(raw[i],false);
+            case OperandStack.UINT  -> stack.pushInt(raw[i],true);
+            case OperandStack.FLOAT -> stack.pushFloat(Double.longBitsToDouble(raw[i]));
+            default -> stack.push(boxed[i]);
+        }
+    }
+    /**pops the top element of stack into the i-th slot, unboxed elements stay unboxed unless the slot is pinned*/
+    void store(int i,OperandStack stack) throws RandomAccessStack.StackUnderflow {
+        byte tag=stack.topTag();
+        if(tag!=OperandStack.BOXED&&tags[i]!=PINNED){
+            raw[i]=stack.popRaw();
+            boxed[i]=null;
+            tags[i]=tag;
+        }else{
+            boxed[i]=stack.pop();
+            if(tags[i]!=PINNED){
+                tags[i]=OperandStack.BOXED;
+            }
+        }
+    }
+    /**boxes the i-th slot and keeps it boxed for the lifetime of these slots
+     * @return the array backing the boxed slots*/
+    Value[] pin(int i){
+        boxed[i]=get(i);
+        tags[i]=PINNED;
+        return boxed;
+    }
+
+    void clear(){
+        Arrays.fill(boxed,null);
+        Arrays.fill(tags,OperandStack.BOXED);
+    }
+}